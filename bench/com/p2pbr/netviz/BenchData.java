@@ -0,0 +1,104 @@
+package com.p2pbr.netviz;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Random;
+
+// Synthetic inputs for the benchmarks, so they run anywhere: packets
+// from made up hosts, and directories of generated .viz files.
+final class BenchData {
+	private BenchData() {}
+
+	// n addresses drawn from hosts distinct ones, mostly remote with some
+	// local and reserved traffic mixed in, as a busy LAN sees it.
+	static int[] ips(int n, int hosts, long seed) {
+		Random random = new Random(seed);
+		int[] pool = new int[hosts];
+		for (int i = 0; i < hosts; i++) {
+			int r = random.nextInt(100);
+			if (r < 80) {
+				pool[i] = (random.nextInt(223) + 1) << 24 | random.nextInt(1 << 24);
+			} else if (r < 95) {
+				pool[i] = 0xc0a80000 | random.nextInt(1 << 16); // 192.168/16
+			} else {
+				pool[i] = 0xe0000000 | random.nextInt(1 << 28); // multicast
+			}
+		}
+		int[] ips = new int[n];
+		for (int i = 0; i < n; i++) {
+			// a few hosts do most of the talking
+			double skew = random.nextDouble();
+			ips[i] = pool[(int) (skew * skew * hosts)];
+		}
+		return ips;
+	}
+
+	static int[] lengths(int n, long seed) {
+		Random random = new Random(seed);
+		int[] lengths = new int[n];
+		for (int i = 0; i < n; i++) {
+			lengths[i] = random.nextBoolean() ? 40 + random.nextInt(40) : 1500;
+		}
+		return lengths;
+	}
+
+	// A GeoResolver that makes its answers up, so no databases are needed:
+	// one place per /16 and one ASN per /8, so hosts fold and locations
+	// repeat as they do from the real ones.
+	static GeoResolver resolver() {
+		return new GeoResolver(null, 24, 1 << 16, 4096) {
+			GeoResolver.Geo lookup(int ip) {
+				int h = (ip >>> 16) * 0x9E3779B9;
+				return new GeoResolver.Geo((h >>> 8 & 0x7f) - 60, (h & 0xff) * 1.4f - 180, ip >>> 24, "NONE", "NONE");
+			}
+		};
+	}
+
+	// A temporary directory of files .viz files of lines lines each, a day
+	// of measurements spread over them, in the format the probes write.
+	static File vizDir(int files, int lines, long seed) throws IOException {
+		File dir = File.createTempFile("netviz-bench", "");
+		dir.delete();
+		dir.mkdirs();
+		Random random = new Random(seed);
+		String[] modes = { "ICMP", "UDP" };
+		int hours = Math.max(1, 24 / files);
+		for (int f = 0; f < files; f++) {
+			int hour = Math.min(23, f * hours);
+			File file = new File(dir, String.format("12_08_12-%02d:00:00", hour));
+			BufferedWriter out = new BufferedWriter(new FileWriter(file));
+			try {
+				for (int i = 0; i < lines; i++) {
+					int minute = i * hours * 60 / lines;
+					int response = random.nextInt(4) == 0 ? -1 : random.nextInt(2500);
+					out.write(IPv4.toString(random.nextInt()) + "\t"
+							+ String.format("12_08_12-%02d:%02d:%02d", Math.min(23, hour + minute / 60), minute % 60, random.nextInt(60))
+							+ "\t" + response + "\t" + IPv4.toString(random.nextInt()) + "\t" + modes[random.nextInt(modes.length)] + "\n");
+				}
+			} finally {
+				out.close();
+			}
+			file.deleteOnExit();
+		}
+		dir.deleteOnExit();
+		return dir;
+	}
+
+	// A TorMap over dir that places addresses by hashing them instead of
+	// asking the GeoIP database, so loading measures parsing and pins,
+	// not MaxMind.
+	static class Map extends TorMap {
+		Map(File dir, String packetMode) {
+			super(dir.getPath(), packetMode, "12_08_12-00:00:00", "12_08_12-23:59:59", 150, 2000, 15);
+			dbConnected = true;
+			SetMapArea(0, 0, 1024, 513);
+		}
+
+		float[] getLatLonByIP(GeoDatabase db, int ip) {
+			int h = ip * 0x9e3779b1;
+			return new float[] { (h >>> 16) % 140 - 60, (h & 0xffff) % 360 - 180 };
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package com.p2pbr.netviz;
+
+import java.util.ArrayList;
+
+// Checks that NetViz's steady state allocates nothing per frame: runs
+// frames of made up traffic through PinMap, the same code NetViz's draw
+// loop calls, then counts the bytes the thread allocated over a run of
+// further frames with the JVM's per thread counter (the one VizMetrics
+// reads for FrameAllocatedBytes). Exits non-zero if any frame allocated,
+// so `ant alloccheck` fails.
+//
+// The applet itself can't be made without a display, so pins are drawn
+// into a PinBatch and a pixel array, as NetViz's batched drawing does
+// short of handing them to Processing. Runs with no cap, with
+// netviz.pins.max's quiet eviction, with its asn folding, and with
+// netviz.pins.cluster's grid.
+public class FrameAllocations implements PinMap.Canvas {
+	static final int BATCH = 4096;
+	static final int WARMUP = 5000;
+	static final int ROUNDS = 5;
+	static final int FRAMES = 200;
+	static final int WIDTH = 1024;
+	static final int HEIGHT = 600;
+	static final int MAP_HEIGHT = 513;
+	static final int TOP = 10;
+
+	final int[] ips = BenchData.ips(1 << 20, 4096, 1);
+	final int[] lengths = BenchData.lengths(ips.length, 2);
+	int next = 0;
+	long now = 0;
+
+	final PacketRing ring = new PacketRing(BATCH * 2);
+	final PinMap map;
+	final PinBatch batch = new PinBatch(1024);
+	final int[] pixels = new int[WIDTH * HEIGHT];
+	final Readout readout = new Readout();
+	final int[] topKeys = new int[TOP];
+	final double[] topCounts = new double[TOP];
+	final double[] topErrors = new double[TOP];
+
+	// pinMax 0 for no cap; evict as netviz.pins.evict; cluster the cell
+	// size, 0 for none.
+	FrameAllocations(int pinMax, String evict, int cluster) {
+		map = new PinMap(BenchData.resolver(), new AddressClassifier(new ArrayList<int[]>()), 4096, ring.capacity(), 15);
+		map.capPins(pinMax, evict, 8);
+		map.trackTop(1024, 10);
+		if (cluster > 0) {
+			map.cluster(new PinGrid(WIDTH, MAP_HEIGHT, cluster, 4));
+		}
+		map.setMapArea(0, 0, WIDTH, MAP_HEIGHT);
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		if (VizMetrics.threadAllocatedBytes() < 0) {
+			System.out.println("[FrameAllocations] this JVM can't count allocations, nothing checked");
+			return;
+		}
+		FrameAllocations[] runs = { new FrameAllocations(0, "quiet", 0), new FrameAllocations(512, "quiet", 0),
+				new FrameAllocations(512, "asn", 0), new FrameAllocations(0, "quiet", 16) };
+		String[] names = { "no cap", "quiet eviction", "asn folding", "clustered" };
+		boolean failed = false;
+		for (int r = 0; r < runs.length; r++) {
+			double perFrame = runs[r].run();
+			System.out.println("[FrameAllocations] " + names[r] + ": " + perFrame + " bytes/frame, "
+					+ runs[r].map.pinCount() + " pins, " + runs[r].map.evicted + " evicted");
+			failed |= perFrame > 0;
+		}
+		if (failed) {
+			System.out.println("[FrameAllocations] FAILED: steady state frames allocate");
+			System.exit(1);
+		}
+	}
+
+	// Bytes allocated per frame, once warmed up. Taken as the least over
+	// a few rounds, so a table growing once doesn't count, while anything
+	// allocated every frame shows up in all of them.
+	double run() throws InterruptedException {
+		for (int i = 0; i < WARMUP; i++) {
+			frame();
+			if (i % 1000 == 0) {
+				Thread.sleep(1); // let the resolver's thread catch up
+			}
+		}
+		// the counter's own cost, taken off what the frames show
+		long overhead = VizMetrics.threadAllocatedBytes();
+		overhead = VizMetrics.threadAllocatedBytes() - overhead;
+		long least = Long.MAX_VALUE;
+		for (int r = 0; r < ROUNDS; r++) {
+			long start = VizMetrics.threadAllocatedBytes();
+			for (int i = 0; i < FRAMES; i++) {
+				frame();
+			}
+			least = Math.min(least, VizMetrics.threadAllocatedBytes() - start - overhead);
+		}
+		return Math.max(least, 0) / (double) FRAMES;
+	}
+
+	// What NetViz.draw does with PinMap, a frame's packets offered first
+	// as the capture thread would.
+	void frame() {
+		for (int i = 0; i < BATCH; i++) {
+			ring.offer(now, ips[next], lengths[next]);
+			next = (next + 1) & (ips.length - 1);
+		}
+		map.applyPackets(ring, now, null);
+		map.draw(this);
+		batch.render(pixels, WIDTH, HEIGHT);
+		int n = map.topHosts.top(TOP, topKeys, topCounts, topErrors);
+		for (int i = 0; i < n; i++) {
+			map.topLine(readout, false, topKeys[i], topCounts[i], topErrors[i]);
+		}
+		n = map.topAsns.top(TOP, topKeys, topCounts, topErrors);
+		for (int i = 0; i < n; i++) {
+			map.topLine(readout, true, topKeys[i], topCounts[i], topErrors[i]);
+		}
+		now += 100;
+	}
+
+	public void pinEllipse(float x, float y, float d, int stroke, int fill) {
+		batch.add(x, y, d, stroke, fill);
+	}
+}
@@ -0,0 +1,139 @@
+package com.p2pbr.netviz;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// NetViz's per packet work: handing packets from the capture thread to
+// the draw loop, sorting them into remote hosts and the reserved pins,
+// counting bytes per host and dropping hosts gone quiet, and finding
+// where a host is. Scores are packets (or addresses) per second.
+//
+// The applet itself can't be made without a display, so ingest runs
+// the PinMap it delegates its frames to, with a Canvas that draws
+// nothing: the per packet and per pin work, minus the rasterizing.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketBench implements PinMap.Canvas {
+
+	// Packets arriving between two frames.
+	static final int BATCH = 4096;
+
+	// Distinct hosts the packets come from.
+	@Param({ "1024", "65536" })
+	int hosts;
+
+	int[] ips;
+	int[] lengths;
+	int next = 0;
+	long now = 0;
+
+	PacketRing ring;
+	AddressClassifier classifier;
+	PinMap map;
+	GeoResolver resolver;
+	GeoDatabase db;
+
+	@Setup
+	public void setup() {
+		ips = BenchData.ips(1 << 20, hosts, 1);
+		lengths = BenchData.lengths(ips.length, 2);
+		ring = new PacketRing(BATCH * 2);
+		classifier = new AddressClassifier(new ArrayList<int[]>());
+		map = new PinMap(BenchData.resolver(), classifier, 4096, ring.capacity(), 15);
+		map.setMapArea(0, 0, 1024, 513);
+
+		// Big enough to hold every prefix, and warmed, so resolve measures
+		// the cache rather than the database behind it.
+		db = GeoDatabase.instance();
+		resolver = new GeoResolver(db, 24, hosts);
+		for (int i = 0; i < ips.length; i++) {
+			resolver.resolve(ips[i]);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		resolver.shutdown();
+		map.resolver.shutdown();
+	}
+
+	// One frame's worth: the capture thread offers a batch, the draw loop
+	// drains and applies it, then walks the pins dropping the quiet ones.
+	// A frame is 100ms.
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public int ingest() {
+		for (int i = 0; i < BATCH; i++) {
+			ring.offer(now, ips[next], lengths[next]);
+			next = (next + 1) & (ips.length - 1);
+		}
+		map.applyPackets(ring, now, null);
+		map.draw(this);
+		now += 100;
+		return map.pinCount();
+	}
+
+	public void pinEllipse(float x, float y, float d, int stroke, int fill) {
+		// drawing isn't what's measured here
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public int classify() {
+		int remote = 0;
+		for (int i = 0; i < BATCH; i++) {
+			remote += classifier.classify(ips[next]) == AddressClassifier.REMOTE ? 1 : 0;
+			next = (next + 1) & (ips.length - 1);
+		}
+		return remote;
+	}
+
+	// Lookups answered from the prefix cache, as most are once NetViz has
+	// been running a while.
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public float resolveCached() {
+		float sum = 0;
+		for (int i = 0; i < BATCH; i++) {
+			sum += resolver.resolve(ips[next]).lat;
+			next = (next + 1) & (ips.length - 1);
+		}
+		return sum;
+	}
+
+	// Straight to MaxMind, as a cache miss does. Only meaningful with the
+	// GeoIP files in the working directory (see netviz.geo.mode);
+	// without them this measures a null check.
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public int lookupDatabase() {
+		int found = 0;
+		for (int i = 0; i < BATCH; i++) {
+			long ip = IPv4.toLong(ips[next]);
+			next = (next + 1) & (ips.length - 1);
+			if (db.location(ip) != null) {
+				found++;
+			}
+			found += db.asn(ip) != 0 ? 1 : 0;
+		}
+		return found;
+	}
+}
@@ -0,0 +1,131 @@
+package com.p2pbr.netviz;
+
+import java.io.File;
+import java.util.LinkedList;
+
+// What a loaded pin costs in the heap, as a PinStore and as the
+// Pin/TimeStamp/LinkedList object graph TorNetViz used to hold, for the
+// same made up .viz files. Each is built from the same loaded rows and
+// measured as the growth in used heap after a few full GCs, the way
+// netviz.tor.measureHeap does, so object headers, padding and list
+// nodes all count. Run with e.g. -Xmx2g; args are the files and lines
+// per file (default 24 and 20000).
+public class PinHeap {
+
+	// Kept reachable while the heap is measured.
+	static Object held;
+
+	public static void main(String[] args) throws Exception {
+		int files = args.length > 0 ? Integer.parseInt(args[0]) : 24;
+		int lines = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+		File dir = BenchData.vizDir(files, lines, 7);
+		TorMap map = new BenchData.Map(dir, "ALL");
+		PinStore loaded = map.CreatePins(new PhaseTimer("list", "parse", "sort", "merge"));
+		PinStore consolidated = map.ConsolidatePins(loaded);
+		report("loaded", loaded);
+		report("consolidated", consolidated);
+	}
+
+	static void report(String name, PinStore pins) {
+		long before = usedHeap();
+		held = copy(pins);
+		long store = usedHeap() - before;
+		held = null;
+
+		before = usedHeap();
+		held = new Legacy().pins(pins);
+		long legacy = usedHeap() - before;
+		held = null;
+
+		int lastKnown = pins.lastKnownStore() == null ? 0 : pins.lastKnownStore().size();
+		System.out.println("[PinHeap] " + name + ": " + pins.size() + " pins (" + lastKnown + " with a last known address), "
+				+ "PinStore " + perPin(store, pins) + " bytes/pin (bytes() says " + perPin(copy(pins).bytes(), pins) + "), "
+				+ "Pin objects " + perPin(legacy, pins) + " bytes/pin");
+	}
+
+	// pins trimmed, with a LocationTable of its own, so it's measured as
+	// TorNetViz holds it.
+	static PinStore copy(PinStore pins) {
+		LocationTable locations = new LocationTable(16);
+		int[] ids = pins.locations.mergeInto(locations);
+		PinStore copy = new PinStore(pins.size(), locations);
+		for (int i = 0; i < pins.size(); i++) {
+			copy.copyRow(pins, i, ids);
+		}
+		copy.trim();
+		return copy;
+	}
+
+	static String perPin(long bytes, PinStore pins) {
+		return String.format("%.1f", (double) bytes / Math.max(1, pins.size()));
+	}
+
+	// Collects until used heap stops going down, as loading leaves
+	// garbage some of which takes more than one GC to go.
+	static long usedHeap() {
+		Runtime rt = Runtime.getRuntime();
+		long used = Long.MAX_VALUE;
+		for (int i = 0; i < 10; i++) {
+			System.gc();
+			long now = rt.totalMemory() - rt.freeMemory();
+			if (now >= used) {
+				break;
+			}
+			used = now;
+		}
+		return used;
+	}
+
+	// TorNetViz's old pins, field for field. Both were inner classes of
+	// the applet, which this stands in for; the PApplet and PImage each
+	// pin pointed at are shared, so only the references count.
+	static class Legacy {
+		final Object applet = new Object();
+		final Object mapImage = new Object();
+
+		class Pin {
+			Object parent;
+			Object mapImage;
+			float x;
+			float y;
+			boolean consolidated;
+			int red;
+			int green;
+			TimeStamp pinTime;
+			Pin LastKnown;
+		}
+
+		class TimeStamp {
+			byte year; byte month; byte date; byte hour; byte minute;
+			int minIncrement; int hrIncrement;
+		}
+
+		LinkedList<Pin> pins(PinStore store) {
+			LinkedList<Pin> list = new LinkedList<Pin>();
+			for (int i = 0; i < store.size(); i++) {
+				Pin pin = pin(store.x(i), store.y(i), store.color[i], store.time[i]);
+				pin.consolidated = (store.flags[i] & PinStore.CONSOLIDATED) != 0;
+				int lk = store.lastKnown[i];
+				if (lk >= 0) {
+					PinStore l = store.lastKnownStore();
+					pin.LastKnown = pin(l.x(lk), l.y(lk), l.color[lk], l.time[lk]);
+				}
+				list.add(pin);
+			}
+			return list;
+		}
+
+		Pin pin(float x, float y, int color, long time) {
+			Pin pin = new Pin();
+			pin.parent = applet;
+			pin.mapImage = mapImage;
+			pin.x = x;
+			pin.y = y;
+			pin.red = PinStore.red(color);
+			pin.green = PinStore.green(color);
+			pin.pinTime = new TimeStamp();
+			pin.pinTime.minute = (byte) (time / 60 % 60);
+			return pin;
+		}
+	}
+}
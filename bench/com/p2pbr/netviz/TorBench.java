@@ -0,0 +1,117 @@
+package com.p2pbr.netviz;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// TorNetViz's loading, over a generated day of .viz files: parsing
+// lines, the whole CreatePins (parse, place, merge), the same from a
+// VizCache, consolidating, and stepping the clock through the result.
+// Scores are milliseconds per pass over the day.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TorBench {
+
+	// 8 files of 25k lines, about 200k measurements.
+	static final int FILES = 8;
+	static final int LINES = 25000;
+
+	File dir;
+	File cacheFile;
+	TorMap map;
+	VizCache cache;
+	PinStore pins;
+	PinStore consolidated;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		dir = BenchData.vizDir(FILES, LINES, 3);
+		// Keep CreatePins on the parse path; the cache has its own benchmark.
+		System.setProperty("netviz.tor.cache", new File(dir, "no.cache").getPath());
+		map = new BenchData.Map(dir, "ALL");
+		map.workers = 1;
+
+		cacheFile = File.createTempFile("netviz-bench", ".cache");
+		cacheFile.deleteOnExit();
+		VizCache.convert(map, cacheFile);
+		cache = new VizCache(cacheFile);
+
+		pins = map.CreatePins(timer());
+		consolidated = map.ConsolidatePins(pins);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		cacheFile.delete();
+	}
+
+	static PhaseTimer timer() {
+		return new PhaseTimer("list", "parse", "sort", "merge");
+	}
+
+	// The tokenizer alone: every line of every file into a Record.
+	@Benchmark
+	public long parse() throws IOException {
+		File[] files = map.ListVizFiles();
+		VizParser.Record r = new VizParser.Record();
+		long sum = 0;
+		for (int i = 0; i < files.length; i++) {
+			VizParser parser = new VizParser(files[i]);
+			while (parser.next(r)) {
+				sum += r.time + r.ip;
+			}
+		}
+		return sum;
+	}
+
+	// One thread, so it's the per line cost rather than the core count.
+	@Benchmark
+	public PinStore createPins() throws IOException {
+		return map.CreatePins(timer());
+	}
+
+	@Benchmark
+	public PinStore loadCache() throws IOException {
+		return cache.load(map, timer());
+	}
+
+	@Benchmark
+	public PinStore consolidate() {
+		return map.ConsolidatePins(pins);
+	}
+
+	// What TorNetViz's draw loop does with the time stamps: step the
+	// clock a tick at a time and take the pins it passes.
+	@Benchmark
+	public int playback() {
+		long clock = map.ClockStart();
+		long step = map.SecondsPerTick(10);
+		int next = 0;
+		int ticks = 0;
+		while (next < consolidated.size()) {
+			clock += step;
+			while (next < consolidated.size() && consolidated.time[next] <= clock) {
+				next++;
+			}
+			ticks++;
+		}
+		return ticks;
+	}
+}
@@ -0,0 +1,267 @@
+package com.p2pbr.netviz;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Scanner;
+
+// Sorts IPv4 addresses into the reserved ranges NetViz draws apart from
+// the map. The CIDR ranges are flattened once into sorted, disjoint
+// intervals; a lookup is one table load for most first octets and a
+// short binary search for the rest.
+//
+// More ranges can be added from a file, NetVizRanges.ini in the working
+// directory or wherever -Dnetviz.ranges points. Each line is a CIDR
+// block and a category name, # starts a comment:
+//
+//   100.64.0.0/10   LOCAL   # CGNAT
+//   10.8.0.0/16     REMOTE  # VPN pool, geolocate it after all
+//
+// Where ranges overlap the more specific one wins, and for equal prefix
+// lengths the later one, so the file overrides the built in ranges.
+final class AddressClassifier {
+	static final byte REMOTE = 0;
+	static final byte LOCAL = 1;
+	static final byte LOOPBACK = 2;
+	static final byte BROADCAST = 3;
+	static final byte AUTOCONFIG = 4;
+	static final byte TESTNET = 5;
+	static final byte OTHER = 6;
+
+	private static final String[] NAMES = { "REMOTE", "LOCAL", "LOOPBACK", "BROADCAST", "AUTOCONFIG", "TESTNET", "OTHER" };
+
+	static final String RANGES_FILE = "NetVizRanges.ini";
+
+	// Built in ranges: address, prefix length, category.
+	private static final int[][] RESERVED = {
+		{ 0x0a000000, 8, LOCAL },       // 10.0.0.0/8
+		{ 0xac100000, 12, LOCAL },      // 172.16.0.0/12
+		{ 0xc0a80000, 16, LOCAL },      // 192.168.0.0/16
+		{ 0x7f000000, 8, LOOPBACK },    // 127.0.0.0/8
+		{ 0x00000000, 8, BROADCAST },   // 0.0.0.0/8
+		{ 0xffffffff, 32, BROADCAST },  // 255.255.255.255
+		{ 0xa9fe0000, 16, AUTOCONFIG }, // 169.254.0.0/16
+		{ 0xc6336400, 24, TESTNET },    // 198.51.100.0/24
+		{ 0xcb007100, 24, TESTNET },    // 203.0.113.0/24
+		{ 0xc0000200, 24, TESTNET },    // 192.0.2.0/24
+		{ 0xe0000000, 3, OTHER },       // 224.0.0.0/3, multicast and class E
+		{ 0xc0586300, 24, OTHER },      // 192.88.99.0/24
+		{ 0xc6120000, 15, OTHER },      // 198.18.0.0/15
+	};
+
+	private static AddressClassifier instance;
+
+	// Interval i covers [starts[i], starts[i+1]) and has category cats[i].
+	// Starts are stored with the sign bit flipped so signed comparison
+	// orders them as unsigned addresses.
+	private final int[] starts;
+	private final byte[] cats;
+
+	// Category for each first octet whose /8 is all one category, or -1
+	// if the binary search is needed.
+	private final byte[] byOctet = new byte[256];
+
+	static synchronized AddressClassifier instance() {
+		if (instance == null) {
+			ArrayList<int[]> ranges = new ArrayList<int[]>();
+			for (int i = 0; i < RESERVED.length; i++) {
+				ranges.add(RESERVED[i]);
+			}
+			File file = new File(System.getProperty("netviz.ranges", RANGES_FILE));
+			if (file.exists()) {
+				try {
+					int added = read(file, ranges);
+					System.out.println("[AddressClassifier] " + added + " ranges from " + file);
+				} catch (FileNotFoundException e) {
+					e.printStackTrace();
+				}
+			}
+			instance = new AddressClassifier(ranges);
+		}
+		return instance;
+	}
+
+	AddressClassifier(ArrayList<int[]> ranges) {
+		// Every range boundary, as unsigned addresses.
+		long[] bounds = new long[ranges.size() * 2 + 1];
+		int n = 0;
+		bounds[n++] = 0;
+		for (int i = 0; i < ranges.size(); i++) {
+			long first = ranges.get(i)[0] & 0xffffffffL;
+			bounds[n++] = first;
+			bounds[n++] = first + size(ranges.get(i)[1]);
+		}
+		Arrays.sort(bounds, 0, n);
+
+		// Each stretch between boundaries takes the category of the most
+		// specific range over it, then equal neighbours merge.
+		int[] s = new int[n];
+		byte[] c = new byte[n];
+		int m = 0;
+		for (int i = 0; i < n; i++) {
+			long at = bounds[i];
+			if (at > 0xffffffffL || (i > 0 && at == bounds[i - 1])) {
+				continue;
+			}
+			byte cat = categoryAt(ranges, at);
+			if (m > 0 && c[m - 1] == cat) {
+				continue;
+			}
+			s[m] = (int) at ^ 0x80000000;
+			c[m] = cat;
+			m++;
+		}
+		starts = new int[m];
+		cats = new byte[m];
+		System.arraycopy(s, 0, starts, 0, m);
+		System.arraycopy(c, 0, cats, 0, m);
+
+		for (int octet = 0; octet < 256; octet++) {
+			int lo = search((octet << 24) ^ 0x80000000);
+			int hi = search(((octet << 24) | 0xffffff) ^ 0x80000000);
+			byOctet[octet] = lo == hi ? cats[lo] : -1;
+		}
+	}
+
+	public byte classify(int ip) {
+		byte cat = byOctet[ip >>> 24];
+		if (cat >= 0) {
+			return cat;
+		}
+		return cats[search(ip ^ 0x80000000)];
+	}
+
+	public boolean isRemote(int ip) {
+		return classify(ip) == REMOTE;
+	}
+
+	// CIDR blocks covering every address that isn't REMOTE, each as
+	// {address, prefix length}.
+	public ArrayList<int[]> reservedBlocks() {
+		ArrayList<int[]> blocks = new ArrayList<int[]>();
+		for (int i = 0; i < starts.length; i++) {
+			if (cats[i] == REMOTE) {
+				continue;
+			}
+			// neighbouring reserved intervals go out as one run
+			long from = (starts[i] ^ 0x80000000) & 0xffffffffL;
+			while (i + 1 < starts.length && cats[i + 1] != REMOTE) {
+				i++;
+			}
+			long to = i + 1 < starts.length ? (starts[i + 1] ^ 0x80000000) & 0xffffffffL : 1L << 32;
+			while (from < to) {
+				// the largest aligned block starting at from that fits
+				int prefix = from == 0 ? 0 : 32 - Long.numberOfTrailingZeros(from);
+				while (from + size(prefix) > to) {
+					prefix++;
+				}
+				blocks.add(new int[] { (int) from, prefix });
+				from += size(prefix);
+			}
+		}
+		return blocks;
+	}
+
+	static String name(byte category) {
+		return NAMES[category];
+	}
+
+	// Index of the interval holding key, a sign-flipped address.
+	private int search(int key) {
+		int lo = 0;
+		int hi = starts.length - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (starts[mid] <= key) {
+				lo = mid;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return lo;
+	}
+
+	private static byte categoryAt(ArrayList<int[]> ranges, long at) {
+		int bestPrefix = -1;
+		byte best = REMOTE;
+		for (int i = 0; i < ranges.size(); i++) {
+			int[] r = ranges.get(i);
+			long first = r[0] & 0xffffffffL;
+			if (at >= first && at < first + size(r[1]) && r[1] >= bestPrefix) {
+				bestPrefix = r[1];
+				best = (byte) r[2];
+			}
+		}
+		return best;
+	}
+
+	private static long size(int prefix) {
+		return 1L << (32 - prefix);
+	}
+
+	// Adds the ranges listed in file; returns how many.
+	private static int read(File file, ArrayList<int[]> ranges) throws FileNotFoundException {
+		Scanner lines = new Scanner(file);
+		int added = 0;
+		try {
+			while (lines.hasNextLine()) {
+				String line = lines.nextLine();
+				int hash = line.indexOf('#');
+				if (hash >= 0) {
+					line = line.substring(0, hash);
+				}
+				line = line.trim();
+				if (line.length() == 0) {
+					continue;
+				}
+				int[] range = parse(line);
+				if (range == null) {
+					System.err.println("[AddressClassifier] skipping \"" + line + "\" in " + file);
+					continue;
+				}
+				ranges.add(range);
+				added++;
+			}
+		} finally {
+			lines.close();
+		}
+		return added;
+	}
+
+	// "a.b.c.d/n CATEGORY" to {address, prefix, category}; null if malformed.
+	static int[] parse(String line) {
+		String[] parts = line.split("\\s+");
+		if (parts.length != 2) {
+			return null;
+		}
+		int slash = parts[0].indexOf('/');
+		String[] octets = (slash < 0 ? parts[0] : parts[0].substring(0, slash)).split("\\.");
+		if (octets.length != 4) {
+			return null;
+		}
+		try {
+			int ip = 0;
+			for (int i = 0; i < 4; i++) {
+				int o = Integer.parseInt(octets[i]);
+				if (o < 0 || o > 255) {
+					return null;
+				}
+				ip = (ip << 8) | o;
+			}
+			int prefix = slash < 0 ? 32 : Integer.parseInt(parts[0].substring(slash + 1));
+			if (prefix < 0 || prefix > 32) {
+				return null;
+			}
+			for (int c = 0; c < NAMES.length; c++) {
+				if (NAMES[c].equalsIgnoreCase(parts[1])) {
+					int mask = prefix == 0 ? 0 : -1 << (32 - prefix);
+					return new int[] { ip & mask, prefix, c };
+				}
+			}
+		} catch (NumberFormatException e) {
+			// fall through
+		}
+		return null;
+	}
+}
@@ -0,0 +1,111 @@
+package com.p2pbr.netviz;
+
+import java.util.ArrayList;
+
+// Which packets a source should bother delivering, from the
+// netviz.capture.* properties:
+//
+//   netviz.capture.filter      a raw BPF expression
+//   netviz.capture.protocol    tcp or udp
+//   netviz.capture.ports       comma separated; either end may match
+//   netviz.capture.remoteOnly  drop packets sent from anywhere the
+//                              AddressClassifier doesn't call REMOTE
+//
+// A live pcap capture compiles all of it into one BPF program, so the
+// kernel throws the rest away before it is ever copied into Java.
+// Sources that can't take a BPF program check the same conditions in
+// Java with accepts(), as early as they can. Only the raw expression
+// can't be checked that way.
+class CaptureFilter {
+
+	final String expression;
+	final int protocol; // Frame.PROTO_TCP, Frame.PROTO_UDP, or 0 for either
+	final int[] ports;
+	final boolean remoteOnly;
+	private final AddressClassifier classifier = AddressClassifier.instance();
+
+	public CaptureFilter(String expression, int protocol, int[] ports, boolean remoteOnly) {
+		this.expression = expression == null ? "" : expression.trim();
+		this.protocol = protocol;
+		this.ports = ports;
+		this.remoteOnly = remoteOnly;
+	}
+
+	public static CaptureFilter fromProperties() {
+		String proto = System.getProperty("netviz.capture.protocol", "").trim();
+		int protocol = 0;
+		if (proto.equalsIgnoreCase("tcp")) {
+			protocol = Frame.PROTO_TCP;
+		} else if (proto.equalsIgnoreCase("udp")) {
+			protocol = Frame.PROTO_UDP;
+		} else if (proto.length() > 0) {
+			System.err.println("[CaptureFilter] unknown protocol " + proto + ", taking all");
+		}
+		String[] list = System.getProperty("netviz.capture.ports", "").split(",");
+		int n = 0;
+		int[] ports = new int[list.length];
+		for (int i = 0; i < list.length; i++) {
+			if (list[i].trim().length() > 0) {
+				ports[n++] = Integer.parseInt(list[i].trim());
+			}
+		}
+		int[] trimmed = new int[n];
+		System.arraycopy(ports, 0, trimmed, 0, n);
+		return new CaptureFilter(System.getProperty("netviz.capture.filter"), protocol, trimmed,
+				Boolean.getBoolean("netviz.capture.remoteOnly"));
+	}
+
+	// True if nothing beyond "IPv4" was asked for.
+	public boolean isEmpty() {
+		return expression.length() == 0 && protocol == 0 && ports.length == 0 && !remoteOnly;
+	}
+
+	// Everything as a single BPF expression.
+	public String bpf() {
+		StringBuilder sb = new StringBuilder("ip");
+		if (protocol == Frame.PROTO_TCP) {
+			sb.append(" and tcp");
+		} else if (protocol == Frame.PROTO_UDP) {
+			sb.append(" and udp");
+		}
+		if (ports.length > 0) {
+			sb.append(" and (");
+			for (int i = 0; i < ports.length; i++) {
+				sb.append(i > 0 ? " or port " : "port ").append(ports[i]);
+			}
+			sb.append(')');
+		}
+		if (remoteOnly) {
+			ArrayList<int[]> blocks = classifier.reservedBlocks();
+			for (int i = 0; i < blocks.size(); i++) {
+				sb.append(" and not src net ").append(IPv4.toString(blocks.get(i)[0])).append('/').append(blocks.get(i)[1]);
+			}
+		}
+		if (expression.length() > 0) {
+			sb.append(" and (").append(expression).append(')');
+		}
+		return sb.toString();
+	}
+
+	// The Java side check, for sources that can't push bpf() down.
+	// Ignores the raw expression.
+	public boolean accepts(Frame f) {
+		if (protocol != 0 && f.protocol != protocol) {
+			return false;
+		}
+		if (ports.length > 0) {
+			boolean match = false;
+			for (int i = 0; i < ports.length && !match; i++) {
+				match = f.senderPort == ports[i] || f.receiverPort == ports[i];
+			}
+			if (!match) {
+				return false;
+			}
+		}
+		return !remoteOnly || classifier.isRemote(f.sender);
+	}
+
+	public String toString() {
+		return bpf();
+	}
+}
@@ -0,0 +1,80 @@
+package com.p2pbr.netviz;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.rsg.carnivore.CarnivoreP5;
+import org.rsg.carnivore.CarnivorePacket;
+
+import processing.core.PApplet;
+
+// Live capture through Carnivore. Carnivore finds the applet's
+// packetEvent(CarnivorePacket) by reflection and calls it from its
+// capture thread; the applet hands each packet straight on to
+// packetEvent here.
+//
+// Carnivore fixes its own BPF program ("ip", or "tcp" when skipping
+// UDP), so a TCP-only filter is the only part pushed down to it. The
+// rest of the CaptureFilter is checked here, before the packet goes
+// any further. PcapSource takes the whole filter in the kernel.
+class CarnivoreSource implements PacketSource {
+	private final PApplet applet;
+	private final PacketSink sink;
+	private final CaptureFilter filter;
+	private final Frame frame = new Frame();
+	private CarnivoreP5 carnivore;
+
+	// Only written from Carnivore's single dispatch thread.
+	private final AtomicLong delivered = new AtomicLong();
+	private final AtomicLong filtered = new AtomicLong();
+
+	public CarnivoreSource(PApplet applet, PacketSink sink, CaptureFilter filter) {
+		this.applet = applet;
+		this.sink = sink;
+		this.filter = filter;
+	}
+
+	public void start() {
+		carnivore = new CarnivoreP5(applet);
+		carnivore.setShouldSkipUDP(filter.protocol == Frame.PROTO_TCP);
+	}
+
+	public void stop() {
+		if (carnivore != null) {
+			carnivore.dispose();
+		}
+	}
+
+	public boolean failed() {
+		return carnivore != null && carnivore.isMacAndPromiscuousModeFailed;
+	}
+
+	public boolean isReplay() {
+		return false;
+	}
+
+	public long delivered() {
+		return delivered.get();
+	}
+
+	public long filtered() {
+		return filtered.get();
+	}
+
+	public long lost() {
+		return 0;
+	}
+
+	public void packetEvent(CarnivorePacket packet) {
+		frame.sender = IPv4.toInt(packet.senderAddress.ip);
+		frame.protocol = packet.intTransportProtocol;
+		frame.senderPort = packet.senderPort;
+		frame.receiverPort = packet.receiverPort;
+		frame.payload = packet.data.length;
+		if (frame.payload == 0 || !filter.accepts(frame)) {
+			filtered.lazySet(filtered.get() + 1);
+			return;
+		}
+		sink.packet(System.currentTimeMillis(), frame.sender, frame.payload);
+		delivered.lazySet(delivered.get() + 1);
+	}
+}
@@ -0,0 +1,113 @@
+package com.p2pbr.netviz;
+
+import processing.core.PApplet;
+import processing.core.PImage;
+
+// Tracks which parts of a cached background layer have been drawn over,
+// on a grid of square tiles, so the next frame can put back just those
+// parts instead of the whole layer. Runs of dirty tiles along a row are
+// restored with a single blit.
+class DirtyTiles {
+	private final int tileSize;
+	private final int cols;
+	private final int rows;
+	private final int width;
+	private final int height;
+	private final boolean[] dirty;
+	private int dirtyCount = 0;
+
+	// Past this many dirty tiles one full blit beats many small ones.
+	private final int fullThreshold;
+
+	// Tiles restored by the last restore(), for the readout.
+	private int restored = 0;
+
+	public DirtyTiles(int width, int height, int tileSize) {
+		this.width = width;
+		this.height = height;
+		this.tileSize = tileSize;
+		this.cols = (width + tileSize - 1) / tileSize;
+		this.rows = (height + tileSize - 1) / tileSize;
+		this.dirty = new boolean[cols * rows];
+		this.fullThreshold = cols * rows / 2;
+	}
+
+	// Marks the tiles under a box centred on (x, y), clipped to the layer.
+	public void mark(float x, float y, float w, float h) {
+		int x0 = Math.max((int) (x - w / 2) - 2, 0);
+		int y0 = Math.max((int) (y - h / 2) - 2, 0);
+		int x1 = Math.min((int) (x + w / 2) + 2, width - 1);
+		int y1 = Math.min((int) (y + h / 2) + 2, height - 1);
+		if (x0 > x1 || y0 > y1) {
+			return;
+		}
+		markCorners(x0, y0, x1, y1);
+	}
+
+	// Marks the tiles under a box from (x0, y0) to (x1, y1) inclusive.
+	public void markCorners(int x0, int y0, int x1, int y1) {
+		x0 = Math.max(x0, 0);
+		y0 = Math.max(y0, 0);
+		x1 = Math.min(x1, width - 1);
+		y1 = Math.min(y1, height - 1);
+		for (int row = y0 / tileSize; row <= y1 / tileSize; row++) {
+			for (int col = x0 / tileSize; col <= x1 / tileSize; col++) {
+				int i = row * cols + col;
+				if (!dirty[i]) {
+					dirty[i] = true;
+					dirtyCount++;
+				}
+			}
+		}
+	}
+
+	public void markAll() {
+		for (int i = 0; i < dirty.length; i++) {
+			dirty[i] = true;
+		}
+		dirtyCount = dirty.length;
+	}
+
+	// Copies the dirty parts of layer back onto the applet at (x, y),
+	// and starts the next frame clean.
+	public void restore(PApplet p, PImage layer, int x, int y) {
+		restored = dirtyCount;
+		if (dirtyCount == 0) {
+			return;
+		}
+		if (dirtyCount >= fullThreshold) {
+			p.image(layer, x, y);
+		} else {
+			for (int row = 0; row < rows; row++) {
+				int col = 0;
+				while (col < cols) {
+					if (!dirty[row * cols + col]) {
+						col++;
+						continue;
+					}
+					int start = col;
+					while (col < cols && dirty[row * cols + col]) {
+						col++;
+					}
+					int u0 = start * tileSize;
+					int v0 = row * tileSize;
+					int u1 = Math.min(col * tileSize, width);
+					int v1 = Math.min(v0 + tileSize, height);
+					p.image(layer, x + u0, y + v0, u1 - u0, v1 - v0, u0, v0, u1, v1);
+				}
+			}
+		}
+		for (int i = 0; i < dirty.length; i++) {
+			dirty[i] = false;
+		}
+		dirtyCount = 0;
+	}
+
+	public int restored() {
+		return restored;
+	}
+
+	public int tiles() {
+		return dirty.length;
+	}
+}
@@ -0,0 +1,103 @@
+package com.p2pbr.netviz;
+
+// The IPv4 fields the visualizers use, picked out of a raw link layer
+// frame as libpcap hands it over. One Frame is reused for every packet
+// a source reads.
+class Frame {
+
+	// Link layer types we can find an IP header in.
+	static final int LINK_NULL = 0;
+	static final int LINK_ETHERNET = 1;
+	static final int LINK_DLT_RAW = 12;  // live captures' DLT for raw IP
+	static final int LINK_LOOP = 108;    // OpenBSD loopback
+	static final int LINK_RAW = 101;
+	static final int LINK_LINUX_SLL = 113;
+	static final int LINK_IPV4 = 228;
+	static final int LINK_LINUX_SLL2 = 276;
+
+	static final int PROTO_TCP = 6;
+	static final int PROTO_UDP = 17;
+
+	int sender;
+	int receiver;
+	int protocol;
+	int senderPort;   // 0 unless TCP or UDP
+	int receiverPort;
+	int payload;      // transport payload bytes, as Carnivore counts them
+
+	// Fills in the fields from a frame of captured bytes, original bytes
+	// on the wire. Returns false if it isn't an IPv4 packet.
+	public boolean decode(byte[] data, int captured, int original, int linkType) {
+		int ip = ipOffset(data, captured, linkType);
+		if (ip < 0 || ip + 20 > captured || (data[ip] & 0xf0) != 0x40) {
+			return false;
+		}
+		int headerLength = (data[ip] & 0x0f) * 4;
+		int totalLength = readShort(data, ip + 2, captured);
+		if (totalLength == 0) {
+			// TSO frames captured on the sending host leave this zero
+			totalLength = original - ip;
+		}
+		protocol = data[ip + 9] & 0xff;
+		sender = readInt(data, ip + 12);
+		receiver = readInt(data, ip + 16);
+
+		int transport = ip + headerLength;
+		int transportHeader = 0;
+		senderPort = 0;
+		receiverPort = 0;
+		if (protocol == PROTO_TCP || protocol == PROTO_UDP) {
+			senderPort = Math.max(readShort(data, transport, captured), 0);
+			receiverPort = Math.max(readShort(data, transport + 2, captured), 0);
+			if (protocol == PROTO_UDP) {
+				transportHeader = 8;
+			} else {
+				transportHeader = transport + 12 < captured ? ((data[transport + 12] & 0xf0) >> 4) * 4 : 20;
+			}
+		}
+		payload = Math.max(totalLength - headerLength - transportHeader, 0);
+		return true;
+	}
+
+	// Where the IPv4 header starts in a frame, or -1 if it doesn't carry one.
+	private static int ipOffset(byte[] data, int captured, int linkType) {
+		switch (linkType) {
+			case LINK_ETHERNET: {
+				int offset = 12;
+				int type = readShort(data, offset, captured);
+				// step over 802.1Q / 802.1ad tags
+				while (type == 0x8100 || type == 0x88a8) {
+					offset += 4;
+					type = readShort(data, offset, captured);
+				}
+				return type == 0x0800 ? offset + 2 : -1;
+			}
+			case LINK_NULL:
+			case LINK_LOOP:
+				// address family in host byte order; AF_INET is 2 everywhere
+				return captured >= 4 && (data[0] == 2 || data[3] == 2) ? 4 : -1;
+			case LINK_RAW:
+			case LINK_DLT_RAW:
+			case LINK_IPV4:
+				return 0;
+			case LINK_LINUX_SLL:
+				return readShort(data, 14, captured) == 0x0800 ? 16 : -1;
+			case LINK_LINUX_SLL2:
+				return readShort(data, 0, captured) == 0x0800 ? 20 : -1;
+			default:
+				return -1;
+		}
+	}
+
+	// Big endian, -1 past limit.
+	private static int readShort(byte[] b, int i, int limit) {
+		if (i + 2 > limit) {
+			return -1;
+		}
+		return ((b[i] & 0xff) << 8) | (b[i + 1] & 0xff);
+	}
+
+	private static int readInt(byte[] b, int i) {
+		return ((b[i] & 0xff) << 24) | ((b[i + 1] & 0xff) << 16) | ((b[i + 2] & 0xff) << 8) | (b[i + 3] & 0xff);
+	}
+}
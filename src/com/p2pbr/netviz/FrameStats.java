@@ -0,0 +1,58 @@
+package com.p2pbr.netviz;
+
+// Frame times and packet throughput over a reporting interval, for
+// seeing how much traffic a visualizer keeps up with. Draw thread only.
+class FrameStats {
+	private final long intervalMillis;
+	private long intervalStart = -1;
+	private long startDelivered = 0;
+	private long startDropped = 0;
+	private int frames = 0;
+	private long totalNanos = 0;
+	private long maxNanos = 0;
+
+	public FrameStats(long intervalMillis) {
+		this.intervalMillis = intervalMillis;
+	}
+
+	public void frame(long nanos) {
+		frames++;
+		totalNanos += nanos;
+		if (nanos > maxNanos) {
+			maxNanos = nanos;
+		}
+	}
+
+	// A report line once an interval has passed, then starts the next
+	// interval. Null until then.
+	public String report(long now, long delivered, long dropped, long offered) {
+		if (intervalStart < 0) {
+			start(now, delivered, dropped);
+			return null;
+		}
+		long elapsed = now - intervalStart;
+		if (elapsed < intervalMillis || frames == 0) {
+			return null;
+		}
+		String line = (delivered - startDelivered) * 1000 / elapsed + " packets/s, "
+				+ frames * 1000 / elapsed + " fps, frame avg " + format(totalNanos / frames)
+				+ " ms max " + format(maxNanos) + " ms, dropped " + (dropped - startDropped)
+				+ " (" + dropped + " of " + offered + " in all)";
+		start(now, delivered, dropped);
+		return line;
+	}
+
+	private void start(long now, long delivered, long dropped) {
+		intervalStart = now;
+		startDelivered = delivered;
+		startDropped = dropped;
+		frames = 0;
+		totalNanos = 0;
+		maxNanos = 0;
+	}
+
+	private static String format(long nanos) {
+		long tenths = nanos / 100000;
+		return tenths / 10 + "." + tenths % 10;
+	}
+}
@@ -0,0 +1,163 @@
+package com.p2pbr.netviz;
+
+import com.maxmind.geoip.*;
+import java.io.File;
+
+// The GeoLiteCity and GeoIPASNum databases, opened once per JVM and shared
+// by every applet and loader through instance().
+//
+// How the files are read is picked with -Dnetviz.geo.mode:
+//   standard - seek and read the file on every lookup (the old behaviour)
+//   index    - keep the top of the search tree in memory, read records from disk
+//   memory   - read the whole database into the heap up front
+// MaxMind's LookupService does its own locking, so lookups are safe from
+// any thread, but they take turns; threads doing nothing but lookups each
+// take a cityCopy(). It also times every lookup, which report() summarizes.
+final class GeoDatabase {
+	static final String CITY_FILE = "GeoLiteCity.dat";
+	static final String ASN_FILE = "GeoIPASNum.dat";
+
+	private static GeoDatabase instance;
+
+	private final String mode;
+	private final int options;
+	private final LookupService cityLookup;
+	private final LookupService asnLookup;
+	private long cityLoadMillis = 0;
+	private long asnLoadMillis = 0;
+
+	private final Log2Histogram latency = new Log2Histogram();
+
+	// The instance a copy hands its latencies to when closed.
+	private final GeoDatabase shared;
+
+	static synchronized GeoDatabase instance() {
+		if (instance == null) {
+			instance = new GeoDatabase(System.getProperty("netviz.geo.mode", "standard"));
+			System.out.println("[GeoDatabase] " + instance.report());
+		}
+		return instance;
+	}
+
+	private GeoDatabase(String mode) {
+		this.mode = mode;
+		this.shared = null;
+		int options = LookupService.GEOIP_STANDARD;
+		if (mode.equalsIgnoreCase("memory")) {
+			options = LookupService.GEOIP_MEMORY_CACHE;
+		} else if (mode.equalsIgnoreCase("index")) {
+			options = LookupService.GEOIP_INDEX_CACHE;
+		}
+		this.options = options;
+
+		long start = System.currentTimeMillis();
+		cityLookup = open(CITY_FILE, options);
+		cityLoadMillis = System.currentTimeMillis() - start;
+
+		start = System.currentTimeMillis();
+		asnLookup = open(ASN_FILE, options);
+		asnLoadMillis = System.currentTimeMillis() - start;
+	}
+
+	private GeoDatabase(GeoDatabase shared) {
+		this.mode = shared.mode;
+		this.options = shared.options;
+		this.shared = shared;
+		long start = System.currentTimeMillis();
+		cityLookup = open(CITY_FILE, options);
+		cityLoadMillis = System.currentTimeMillis() - start;
+		asnLookup = null;
+	}
+
+	// The city database opened again, in the same mode, for one thread to
+	// look up from without waiting on any other. It has a file handle of
+	// its own, or in memory mode a copy of the file of its own, so take
+	// one per loading thread rather than one per file. close() it when
+	// the thread's done; its lookups are then counted here.
+	GeoDatabase cityCopy() {
+		return new GeoDatabase(this);
+	}
+
+	// Closes a cityCopy(). The shared instance stays open.
+	void close() {
+		if (shared == null) {
+			return;
+		}
+		if (cityLookup != null) {
+			cityLookup.close();
+		}
+		shared.latency.add(latency);
+	}
+
+	private static LookupService open(String name, int options) {
+		try {
+			return new LookupService(new File(name), options);
+		} catch (Exception e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	// True if both databases opened.
+	boolean connected() {
+		return cityLookup != null && asnLookup != null;
+	}
+
+	// True if the city database opened, which is all locating needs;
+	// without the ASN one asn() just answers 0.
+	boolean hasCity() {
+		return cityLookup != null;
+	}
+
+	// City record for an IPv4 address as an unsigned long, or null.
+	Location location(long ip) {
+		if (cityLookup == null) {
+			return null;
+		}
+		long start = System.nanoTime();
+		Location loc = cityLookup.getLocation(ip);
+		record(System.nanoTime() - start);
+		return loc;
+	}
+
+	// City record for a dotted quad, or null.
+	Location location(String ip) {
+		if (cityLookup == null) {
+			return null;
+		}
+		long start = System.nanoTime();
+		Location loc = cityLookup.getLocation(ip);
+		record(System.nanoTime() - start);
+		return loc;
+	}
+
+	// AS number for an IPv4 address as an unsigned long, 0 if unknown.
+	int asn(long ip) {
+		if (asnLookup == null) {
+			return 0;
+		}
+		long start = System.nanoTime();
+		int id = asnLookup.getID(ip);
+		record(System.nanoTime() - start);
+		return id;
+	}
+
+	private void record(long nanos) {
+		latency.record(nanos);
+	}
+
+	// Every lookup's time in nanoseconds.
+	Log2Histogram latency() {
+		return latency;
+	}
+
+	String report() {
+		long n = latency.count();
+		return "mode " + mode
+			+ ", " + CITY_FILE + (cityLookup == null ? " missing" : " loaded in " + cityLoadMillis + " ms")
+			+ ", " + ASN_FILE + (asnLookup == null ? " missing" : " loaded in " + asnLoadMillis + " ms")
+			+ ", " + n + " lookups"
+			+ (n == 0 ? "" : ", avg " + (latency.sum() / n / 1000.0) + " us, p99 " + (latency.percentile(0.99) / 1000.0)
+				+ " us, max " + (latency.max() / 1000.0) + " us");
+	}
+}
@@ -0,0 +1,232 @@
+package com.p2pbr.netviz;
+
+import com.maxmind.geoip.Location;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Geolocation and ASN for IPv4 addresses, answered per prefix from a
+// cache. Addresses in the same prefix (a /24 by default) share one
+// database lookup.
+//
+// get() never touches the database: a miss queues the prefix for the
+// background thread and returns null, and the caller asks again later.
+// Prefixes the database doesn't know are cached too (at lat/lon 1000, as
+// before), so scans from unroutable space don't keep hitting the DB.
+// At most maxPending prefixes wait for the background thread at once;
+// past that a miss isn't queued at all (counted in skipped()), so a flood
+// from random sources can't grow the queue without bound.
+//
+// The cache is int keyed, so a hit boxes nothing and a frame of packets
+// from hosts already placed allocates nothing. Past capacity the least
+// recently used of EVICT_SAMPLE prefixes picked at random goes, which
+// stays close to LRU without keeping an access order.
+class GeoResolver {
+	// Latitude/longitude used for addresses the database can't place.
+	static final float UNKNOWN = 1000;
+
+	private static final int EVICT_SAMPLE = 8;
+
+	// What the databases say about one prefix.
+	static class Geo {
+		final float lat;
+		final float lon;
+		final int asn;
+		final String city;
+		final String country;
+
+		// when the cache last handed this out, for eviction
+		long used;
+
+		Geo(float lat, float lon, int asn, String city, String country) {
+			this.lat = lat;
+			this.lon = lon;
+			this.asn = asn;
+			this.city = city;
+			this.country = country;
+		}
+
+		boolean known() {
+			return lat != UNKNOWN;
+		}
+	}
+
+	private final GeoDatabase db;
+	private final int prefixMask;
+	private final int capacity;
+	private final int maxPending;
+
+	// Guarded by this.
+	private final PinTable<Geo> cache;
+	private final PinTable<Boolean> pending = new PinTable<Boolean>(64);
+	private final Random random = new Random();
+	private long clock = 0;
+
+	private final ExecutorService executor;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong unknowns = new AtomicLong();
+	private final AtomicLong skipped = new AtomicLong();
+
+	public GeoResolver(GeoDatabase db, int prefixLength, int capacity) {
+		this(db, prefixLength, capacity, Integer.MAX_VALUE);
+	}
+
+	public GeoResolver(GeoDatabase db, int prefixLength, int capacity, int maxPending) {
+		this.db = db;
+		this.prefixMask = prefixLength <= 0 ? 0 : -1 << (32 - Math.min(prefixLength, 32));
+		this.capacity = Math.max(capacity, 1);
+		this.maxPending = Math.max(maxPending, 1);
+		this.cache = new PinTable<Geo>(Math.min(this.capacity, 1 << 16));
+		this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "GeoResolver");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	// Cached answer for ip's prefix, or null while it is being looked up
+	// (or while too many others are, see maxPending).
+	public Geo get(final int ip) {
+		final int prefix = ip & prefixMask;
+		synchronized (this) {
+			Geo g = cache.get(prefix);
+			if (g != null) {
+				hits.incrementAndGet();
+				g.used = ++clock;
+				return g;
+			}
+			if (pending.get(prefix) != null) {
+				return null;
+			}
+			if (pending.size() >= maxPending) {
+				skipped.incrementAndGet();
+				return null;
+			}
+			pending.put(prefix, Boolean.TRUE);
+		}
+		misses.incrementAndGet();
+		executor.execute(new Runnable() {
+			public void run() {
+				Geo g = lookup(ip);
+				synchronized (GeoResolver.this) {
+					pending.remove(prefix);
+					store(prefix, g);
+				}
+			}
+		});
+		return null;
+	}
+
+	// Cached answer for ip's prefix, looking it up on this thread if needed.
+	public Geo resolve(int ip) {
+		int prefix = ip & prefixMask;
+		synchronized (this) {
+			Geo g = cache.get(prefix);
+			if (g != null) {
+				hits.incrementAndGet();
+				g.used = ++clock;
+				return g;
+			}
+		}
+		misses.incrementAndGet();
+		Geo g = lookup(ip);
+		synchronized (this) {
+			store(prefix, g);
+		}
+		return g;
+	}
+
+	// Caller holds the lock.
+	private void store(int prefix, Geo g) {
+		if (cache.get(prefix) == null && cache.size() >= capacity) {
+			evict();
+		}
+		g.used = ++clock;
+		cache.put(prefix, g);
+	}
+
+	private void evict() {
+		int n = cache.size();
+		int victim = -1;
+		for (int k = 0; k < EVICT_SAMPLE; k++) {
+			int i = random.nextInt(n);
+			if (victim < 0 || cache.pinAt(i).used < cache.pinAt(victim).used) {
+				victim = i;
+			}
+		}
+		cache.removeAt(victim);
+		evictions.incrementAndGet();
+	}
+
+	// Straight to the databases; overridden by BenchData to make up
+	// answers without them.
+	Geo lookup(int ip) {
+		float lat = UNKNOWN;
+		float lon = UNKNOWN;
+		int asn = 0;
+		String city = "NONE";
+		String country = "NONE";
+		try {
+			Location loc = db.location(IPv4.toLong(ip));
+			if (loc != null) {
+				lat = loc.latitude;
+				lon = loc.longitude;
+				if (loc.city != null) {
+					city = loc.city;
+				}
+				if (loc.countryName != null) {
+					country = loc.countryName;
+				}
+			}
+			asn = db.asn(IPv4.toLong(ip));
+		} catch (Exception e) {
+			// a corrupt record shouldn't kill the resolver; cache it as unknown
+			e.printStackTrace();
+		}
+		if (lat == UNKNOWN) {
+			unknowns.incrementAndGet();
+		}
+		return new Geo(lat, lon, asn, city, country);
+	}
+
+	public synchronized int size() {
+		return cache.size();
+	}
+
+	public synchronized int pending() {
+		return pending.size();
+	}
+
+	public long hits() {
+		return hits.get();
+	}
+
+	public long misses() {
+		return misses.get();
+	}
+
+	public long evictions() {
+		return evictions.get();
+	}
+
+	// Misses that turned out to be unknown to the database.
+	public long unknowns() {
+		return unknowns.get();
+	}
+
+	// Misses not queued because maxPending lookups already were.
+	public long skipped() {
+		return skipped.get();
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+}
@@ -0,0 +1,34 @@
+package com.p2pbr.netviz;
+
+import java.net.InetAddress;
+
+// Helpers for carrying IPv4 addresses around as plain ints.
+// The int holds the address in network order, first octet in the high byte.
+final class IPv4 {
+	private IPv4() {}
+
+	// Anything that isn't a 4 byte address maps to 0.0.0.0.
+	static int toInt(InetAddress addr) {
+		if (addr == null) {
+			return 0;
+		}
+		byte[] b = addr.getAddress();
+		if (b.length != 4) {
+			return 0;
+		}
+		return ((b[0] & 0xff) << 24) | ((b[1] & 0xff) << 16) | ((b[2] & 0xff) << 8) | (b[3] & 0xff);
+	}
+
+	// The unsigned form MaxMind's LookupService expects.
+	static long toLong(int ip) {
+		return ip & 0xffffffffL;
+	}
+
+	static int octet(int ip, int n) {
+		return (ip >>> (8 * (4 - n))) & 0xff;
+	}
+
+	static String toString(int ip) {
+		return octet(ip, 1) + "." + octet(ip, 2) + "." + octet(ip, 3) + "." + octet(ip, 4);
+	}
+}
@@ -0,0 +1,160 @@
+package com.p2pbr.netviz;
+
+// Every distinct (lat, lon) pins have been placed at, each given a small
+// int id and projected onto the map once. GeoLite puts many thousands of
+// addresses at the same city coordinates, so pins hold an id into here
+// rather than their own x and y, and "the same place" is an int compare.
+// Ids are dense from 0, in the order places are first seen.
+//
+// Loading threads each fill a table of their own, which mergeInto() then
+// adds to the map's, so they don't take turns on one lock. intern() is
+// still safe from any thread; the other accessors are for after loading,
+// or for the loading thread.
+class LocationTable {
+	// Hash table from the position's bits to id + 1, 0 marking an empty
+	// slot. The keys are also where lat and lon are kept.
+	private long[] keys;
+	private int[] slots;
+	private int mask;
+
+	// Projected positions, by id.
+	private float[] x;
+	private float[] y;
+	private int size = 0;
+
+	// The map positions are projected onto, see project().
+	private float mapX = 0;
+	private float mapY = 0;
+	private float mapWidth = 0;
+	private float mapHeight = 0;
+
+	public LocationTable(int expected) {
+		expected = Math.max(expected, 16);
+		int cap = 1;
+		while (cap < expected * 2) {
+			cap <<= 1;
+		}
+		keys = new long[cap];
+		slots = new int[cap];
+		mask = cap - 1;
+		x = new float[expected];
+		y = new float[expected];
+	}
+
+	// Sets the map area, in pixels, and projects every place onto it.
+	public synchronized void project(float areaX, float areaY, float width, float height) {
+		mapX = areaX;
+		mapY = areaY;
+		mapWidth = width;
+		mapHeight = height;
+		for (int s = 0; s < keys.length; s++) {
+			if (slots[s] != 0) {
+				int id = slots[s] - 1;
+				x[id] = projectX(Float.intBitsToFloat((int) keys[s]));
+				y[id] = projectY(Float.intBitsToFloat((int) (keys[s] >>> 32)));
+			}
+		}
+	}
+
+	// The id of (lat, lon), added if it's new.
+	public synchronized int intern(float latitude, float longitude) {
+		long key = ((long) Float.floatToIntBits(latitude) << 32) | (Float.floatToIntBits(longitude) & 0xffffffffL);
+		int s = home(key);
+		while (slots[s] != 0) {
+			if (keys[s] == key) {
+				return slots[s] - 1;
+			}
+			s = (s + 1) & mask;
+		}
+		if (size == x.length) {
+			grow();
+		}
+		int id = size++;
+		x[id] = projectX(longitude);
+		y[id] = projectY(latitude);
+		keys[s] = key;
+		slots[s] = id + 1;
+		if (size * 2 > keys.length) {
+			rehash(keys.length * 2);
+		}
+		return id;
+	}
+
+	// Interns every place here into table, in id order, and returns the
+	// id each one has there, indexed by its id here.
+	public synchronized int[] mergeInto(LocationTable table) {
+		long[] byId = new long[size];
+		for (int s = 0; s < keys.length; s++) {
+			if (slots[s] != 0) {
+				byId[slots[s] - 1] = keys[s];
+			}
+		}
+		int[] ids = new int[size];
+		for (int id = 0; id < size; id++) {
+			ids[id] = table.intern(Float.intBitsToFloat((int) (byId[id] >>> 32)), Float.intBitsToFloat((int) byId[id]));
+		}
+		return ids;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public float x(int id) {
+		return x[id];
+	}
+
+	public float y(int id) {
+		return y[id];
+	}
+
+	// Heap held by the table, spare capacity included.
+	public long bytes() {
+		return (long) keys.length * (8 + 4) + (long) x.length * (4 + 4);
+	}
+
+	// Processing's map(), so positions come out exactly as they did when
+	// every pin worked out its own.
+	private float projectX(float longitude) {
+		return mapX + mapWidth * ((longitude + 180) / 360);
+	}
+
+	private float projectY(float latitude) {
+		return mapY + mapHeight * ((latitude - 90) / -180);
+	}
+
+	private int home(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+
+	private void grow() {
+		int capacity = x.length * 2;
+		x = copy(x, capacity);
+		y = copy(y, capacity);
+	}
+
+	private float[] copy(float[] a, int capacity) {
+		float[] b = new float[capacity];
+		System.arraycopy(a, 0, b, 0, size);
+		return b;
+	}
+
+	private void rehash(int cap) {
+		long[] oldKeys = keys;
+		int[] oldSlots = slots;
+		keys = new long[cap];
+		slots = new int[cap];
+		mask = cap - 1;
+		for (int s = 0; s < oldKeys.length; s++) {
+			if (oldSlots[s] != 0) {
+				int t = home(oldKeys[s]);
+				while (slots[t] != 0) {
+					t = (t + 1) & mask;
+				}
+				keys[t] = oldKeys[s];
+				slots[t] = oldSlots[s];
+			}
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package com.p2pbr.netviz;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Counts of values by power of two, for latencies. Recording is a few
+// atomic adds and no allocation, and percentiles come out within a
+// factor of two, which is plenty to see frames or lookups going bad.
+// Safe from any thread.
+class Log2Histogram {
+	// bucket 0 holds 0, bucket b holds [2^(b-1), 2^b)
+	private final AtomicLongArray buckets = new AtomicLongArray(64);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long m = max.get();
+		while (value > m && !max.compareAndSet(m, value)) {
+			m = max.get();
+		}
+	}
+
+	public long count() {
+		return count.get();
+	}
+
+	public long sum() {
+		return sum.get();
+	}
+
+	public long max() {
+		return max.get();
+	}
+
+	public double mean() {
+		long n = count.get();
+		return n == 0 ? 0 : (double) sum.get() / n;
+	}
+
+	// Upper bound of the bucket the p'th value (0 to 1) falls in, or the
+	// largest value seen if that's lower.
+	public long percentile(double p) {
+		long n = count.get();
+		if (n == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(p * n));
+		long seen = 0;
+		for (int b = 0; b < 64; b++) {
+			seen += buckets.get(b);
+			if (seen >= rank) {
+				return Math.min(b == 0 ? 0 : (1L << b) - 1, max.get());
+			}
+		}
+		return max.get();
+	}
+
+	// Adds every value other has recorded, as a thread that kept its own
+	// histogram hands its figures over when it's done.
+	public void add(Log2Histogram other) {
+		for (int b = 0; b < 64; b++) {
+			buckets.addAndGet(b, other.buckets.get(b));
+		}
+		count.addAndGet(other.count.get());
+		sum.addAndGet(other.sum.get());
+		long value = other.max.get();
+		long m = max.get();
+		while (value > m && !max.compareAndSet(m, value)) {
+			m = max.get();
+		}
+	}
+
+	// Not atomic with respect to concurrent records; a value or two may
+	// land on either side.
+	public void reset() {
+		for (int b = 0; b < 64; b++) {
+			buckets.set(b, 0);
+		}
+		count.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+}
@@ -2,27 +2,37 @@ package com.p2pbr.netviz;
 
 import processing.core.*;
 
-import java.util.Date;
-import java.util.LinkedList;
-
 import org.rsg.carnivore.*;
 import org.rsg.lib.Log;
 
 public class NetMeter extends PApplet {
 	private static final long serialVersionUID = 6707035246409474675L;
 
-	private class pkt {
-		public Date time;
-		public int bytes;
-	}
 	double knownWindow = 60; // reference 'max'
 	double MAX_CNT = 125000; // 1Mbps in bytes/s.
-	LinkedList<pkt> inWindow = new LinkedList<pkt>();
-	LinkedList<pkt> inNow = new LinkedList<pkt>();
-	int inTotal = 0;
-	int windowTotal = 0;
-	CarnivoreP5 c;
+	// Bytes over the last second, and over the last knownWindow seconds.
+	SlidingWindowCounter inNow = new SlidingWindowCounter(10, 100);
+	SlidingWindowCounter inWindow = new SlidingWindowCounter(100, (int) (knownWindow * 10));
 	PFont font32;
+	
+	// Packets from the source, applied by the draw thread each frame.
+	PacketRing ring = new PacketRing(Integer.getInteger("netviz.ring.capacity", 1 << 16));
+	long drainTimes[] = new long[ring.capacity()];
+	int drainIps[] = new int[ring.capacity()];
+	int drainLengths[] = new int[ring.capacity()];
+	
+	// Where packets come from, see PacketSources.
+	PacketSource source;
+	FrameStats frameStats = new FrameStats(5000);
+	
+	// Published over JMX, see VizMetrics.
+	VizMetrics metrics;
+	
+	// Wall clock, read once at the top of each frame.
+	long now;
+	
+	// The readout, rebuilt in place each frame.
+	Readout readout = new Readout();
 
 	public void setup() {
 		size(800, 600);
@@ -30,15 +40,29 @@ public class NetMeter extends PApplet {
 		background(0);
 	  
 		Log.setDebug(false);
-		c = new CarnivoreP5(this);
+		source = PacketSources.open(this, ring);
+		source.start();
+		metrics = VizMetrics.register("NetMeter", frameRateTarget, ring, null);
 	}
 
 	public void draw() {
-		  if(c.isMacAndPromiscuousModeFailed) {
+		  long frameStart = System.nanoTime();
+		  now = System.currentTimeMillis();
+		  if(source.failed()) {
 			  drawError();
 		  } else {
 			  drawMap();
 		  }
+		  long frameNanos = System.nanoTime() - frameStart;
+		  frameStats.frame(frameNanos);
+		  metrics.frame(frameNanos, now);
+		  metrics.windows(inNow.total(now), inWindow.total(now));
+		  if (source.isReplay()) {
+			  String report = frameStats.report(now, source.delivered(), ring.dropped(), ring.offered());
+			  if (report != null) {
+				  println("[NetMeter] " + report + metrics.allocationReport());
+			  }
+		  }
 	}
 
 	void drawMap(){
@@ -56,30 +80,14 @@ public class NetMeter extends PApplet {
 	}
 
 		// Iterate through each node 
-	synchronized void drawNodes() {
-		pkt p;
-		while (inNow.size() > 0) {
-			p = inNow.remove();
-			if (p.time.getTime() + 1000 < new Date().getTime()) {
-				inTotal -= p.bytes;
-			} else {
-				inNow.addFirst(p);
-				break;
-			}
-		}
-		while (inWindow.size() > 0) {
-			p = inWindow.remove();
-			if (p.time.getTime() + 1000*knownWindow < new Date().getTime()) {
-				windowTotal -= p.bytes;
-			} else {
-				inWindow.addFirst(p);
-				break;
-			}
-		}
+	void drawNodes() {
+		applyPackets();
+		long inTotal = inNow.total(now);
+		long windowTotal = inWindow.total(now);
 		double windowDuration = knownWindow;
-		if (inWindow.size() > 0) {
-			p = inWindow.getFirst();
-			windowDuration = (new Date().getTime() - p.time.getTime()) / 1000.0;
+		long span = inWindow.span(now);
+		if (span > 0) {
+			windowDuration = span / 1000.0;
 		}
 		
 		float windowFraction = (float) (height * (windowTotal/windowDuration)/MAX_CNT);
@@ -92,25 +100,38 @@ public class NetMeter extends PApplet {
 		int x = width/2 - 200;
 		int y = 75;
 		fill(0, 0, 0);
-		text("Awesome: " + inTotal + " vs " + (windowTotal/windowDuration), x, y);
+		readout.clear().append("Awesome: ").append(inTotal).append(" vs ").append(windowTotal/windowDuration, 1);
+		text(readout.chars(), 0, readout.length(), x, y);
+	}
+
+	// Called each time a new packet arrives, on Carnivore's thread.
+	// The source only queues it; drawNodes applies it.
+	public void packetEvent(CarnivorePacket packet){
+		  ((CarnivoreSource) source).packetEvent(packet);
+	}
+
+	// Drains the packet ring and applies the whole batch.
+	private void applyPackets() {
+		  int n = ring.drain(drainTimes, drainIps, drainLengths);
+		  long bytes = 0;
+		  for (int i = 0; i < n; i++) {
+			  applyPacket(drainTimes[i], drainLengths[i]);
+			  bytes += drainLengths[i];
+		  }
+		  metrics.packets(n, bytes);
 	}
 
-	// Called each time a new packet arrives
-	public synchronized void packetEvent(CarnivorePacket packet){
-		  pkt pkt = new pkt();
-		  pkt.time = new Date();
-		  pkt.bytes = packet.data.length;
-		  if (inTotal + pkt.bytes > MAX_CNT)
+	private void applyPacket(long now, int bytes) {
+		  long inTotal = inNow.total(now);
+		  if (inTotal + bytes > MAX_CNT)
 		  {
-			  pkt.bytes = (int) (MAX_CNT - inTotal);
+			  bytes = (int) (MAX_CNT - inTotal);
 		  }
-		  if (pkt.bytes == 0) {
+		  if (bytes <= 0) {
 			  return;
 		  }
-		  inWindow.add(pkt);
-		  inNow.add(pkt);
-		  inTotal += pkt.bytes;
-		  windowTotal += pkt.bytes;
+		  inWindow.add(now, bytes);
+		  inNow.add(now, bytes);
 	}
 
 	public static void main(String args[]) {
@@ -2,24 +2,17 @@ package com.p2pbr.netviz;
 
 import processing.core.*;
 
-import com.maxmind.geoip.*;
-import java.util.Date;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedList;
 import org.rsg.carnivore.*;
-import org.rsg.carnivore.net.*;
 import org.rsg.lib.Log;
 
-public class NetViz extends PApplet {
+public class NetViz extends PApplet implements PinMap.Canvas {
 	private static final long serialVersionUID = 9075470452122575298L;
 
-    LookupService asnLookup;
-    LookupService geoLookup;
+    GeoDatabase geoDb;
+    GeoResolver resolver;
     boolean dbConnected = false;
     
-    HashMap<String, Pin> pins = new HashMap<String, Pin>();
     HashSet<String> countries = new HashSet<String>();
     HashSet<String> cities = new HashSet<String>();
     
@@ -28,9 +21,6 @@ public class NetViz extends PApplet {
     int ctr = 0;
     int average[];
     int avgBin = 0;
-    int newPackets = 0;
-    
-    Pin localPin, broadcastPin, loopbackPin, autoconfigPin;
     
     // CONSTANTS
     private final double WINDOW_SIZE = 15; // reference 'max'
@@ -39,169 +29,122 @@ public class NetViz extends PApplet {
     private final int mapY = 0;
     private final int WIDTH = 1024;
     private final int HEIGHT = 600;
-    private final int DEAD_TIMER_CAP = 60;  //10 frames after losing the last of its bytes, a pin vanishes
+    private final int PIN_CAPACITY = Integer.getInteger("netviz.pins.capacity", 4096);
+    private final int RING_CAPACITY = Integer.getInteger("netviz.ring.capacity", 1 << 16);
+    private final int GEO_PREFIX = Integer.getInteger("netviz.geo.prefix", 24);
+    private final int GEO_CACHE = Integer.getInteger("netviz.geo.cache", 1 << 16);
+    private final int GEO_PENDING = Integer.getInteger("netviz.geo.pending", 4096);
+    private final int TOP = Integer.getInteger("netviz.top", 0);
+    private final int TOP_COUNTERS = Integer.getInteger("netviz.top.counters", 1024);
+    private final double TOP_HALF_LIFE = Double.parseDouble(System.getProperty("netviz.top.halfLife", "10"));
+    
+    // Which addresses get the reserved pins instead of a place on the map.
+    AddressClassifier classifier = AddressClassifier.instance();
+    
+    // Where packets come from, see PacketSources.
+    PacketSource source;
+    
+    // Frame times and throughput, logged while replaying.
+    FrameStats frameStats = new FrameStats(5000);
     
-    private final String LOCAL_IP = "LOCAL";
-    private final String LOOPBACK_IP = "LOOPBACK";
-    private final String BROADCAST_IP = "BROADCAST";
-    private final String AUTOCONFIG_IP = "AUTOCONFIG";
-    private final String TESTNET_IP = "TESTNET";
-    private final String OTHER_IP = "OTHER";
+    // Published over JMX, see VizMetrics.
+    VizMetrics metrics;
     
-    LinkedList<pkt> inWindow = new LinkedList<pkt>();
-    LinkedList<pkt> inNow = new LinkedList<pkt>();
-    CarnivoreP5 c;
+    // The heaviest remote hosts and ASNs lately, listed top right when
+    // netviz.top is set; see PinMap.trackTop.
+    int topKeys[];
+    double topCounts[];
+    double topErrors[];
     
-    Date lastTime;
+    // Wall clock, read once at the top of each frame.
+    long now;
+    
+    // Packets handed over from the capture thread, drained each frame.
+    PacketRing ring = new PacketRing(RING_CAPACITY);
+    
+    // The pins, and everything a frame does to them; see PinMap.
+    PinMap pinMap;
     
     int lastBG[]  = new int[3];
+    int bg[] = new int[3];
     
-    private class Pin {
-      @SuppressWarnings("unused")
-      PApplet parent;
+    // -Dnetviz.pins.max caps the pins on the map, evicting by
+    // netviz.pins.evict (quiet, light or asn) from netviz.pins.evictSample
+    // picked at random; see PinMap.capPins.
+    private final int PIN_MAX = Integer.getInteger("netviz.pins.max", 0);
+    private final String EVICT = System.getProperty("netviz.pins.evict", "quiet");
+    private final int EVICT_SAMPLE = Integer.getInteger("netviz.pins.evictSample", 8);
     
-      public int state;
-      public int animation;
-      
-      private final int STATE_STATIC = 0;
-      private final int STATE_ANIMATE = 1;
-      
-      private final int ANIMATION_MAX = 20;
-      private final int ANIMATION_RADIUS = 400;
-      
-      private final int PULSE_MAX = 5;
-      
-      private int pulse = -1 * PULSE_MAX;
-           
-      @SuppressWarnings("unused")
-      public PImage mapImage;
-      public float x;
-      public float y; 
-      public int asn;
-      
-      public int bytes = 0;
-      
-      private int deadTimer = 1;
-      private boolean pulseUp = true;
-      
-      public Pin(PApplet p, PImage mapImage, float lat, float lon, int asn) {
-        this.parent = p;
-        this.mapImage = mapImage;
-        this.x = map(lon, -180, 180, mapX, mapX+mapImage.width);
-        this.y = map(lat, 90, -90, mapY, mapY+mapImage.height);
-        this.asn = asn;
-        
-        this.state = STATE_ANIMATE;
-        this.animation = 1;
-      }
-
-      private int pulseStep() {
-        if (pulseUp) { pulse++; }
-        else         { pulse--; }
-        if (pulse >= PULSE_MAX)      { pulseUp = false; }
-        if (pulse <= PULSE_MAX * -1) { pulseUp = true; }
-        return pulse;
-      }
-
-      public boolean drawSelf() {
-        int rad = 8;
-        if (bytes > 0) {
-          rad = (int)Math.log(bytes)*5;      
-        }
-        if (rad < 8) {
-          rad = 8; 
-        }
-        rad += this.pulseStep();
+    // Readout text, rebuilt in place each frame, see Readout.
+    Readout readout = new Readout();
     
-        if (state == STATE_STATIC) {
-          //println("static, rad="+rad);
-          if (bytes > 0) {
-            //println("bytes >0");
-            fill(0x00, 0x00, 0x00, 0x00);
-            stroke(0xff, (this.asn & 0xff00) >> 8, this.asn & 0xff);
-            ellipse(this.x, this.y, rad, rad);
-            return true;
-          }
-          else if (deadTimer <= DEAD_TIMER_CAP) {
-            stroke(0xff, (this.asn & 0xff00) >> 8, this.asn & 0xff, 0xaa/deadTimer);  //no bytes left in window - display as transparent
-            fill(0x00, 0x00);
-            ellipse(this.x, this.y, rad, rad);
-            deadTimer++;
-            return true;
-          }
-          else {
-            return false;
-          }
-        }
-        else if (state == STATE_ANIMATE) {
-          //println("animating");
-          // circle starts large, gets small
-          // starts fully opaque, becomes transparent
-          fill(0x00, 0x00, 0x00, 0x00);
-          stroke(0xff, (this.asn & 0xff00) >> 8, this.asn & 0xff);
-          ellipse(this.x, this.y, ANIMATION_RADIUS/this.animation, ANIMATION_RADIUS/this.animation);
-      
-          // circle starts small, gets to target size
-          // starts transparent, becomes opaque
-          fill(0xff, (this.asn & 0xff00) >> 8, this.asn & 0xff, 0x00);
-          stroke(0xff, (this.asn & 0xff00) >> 8, this.asn & 0xff);
-          ellipse(this.x, this.y, rad - (rad/this.animation), rad - (rad/this.animation));
-      
-          this.animation++;
-          if (this.animation >= ANIMATION_MAX) {
-            this.state = STATE_STATIC; 
-          }
-          return true;
-        }
-        return false;
-      }
-        
-      public void addBytes(int bytes) {
-        this.bytes += bytes;
-        if (bytes > 0) {
-          deadTimer = 1; 
-        }
-      }
-      public void subBytes(int bytes) {
-        this.bytes -= bytes; 
-      }
-    }
+    // The map, composed once into mapLayer along with anything else that
+    // rarely changes. Each frame restores only the tiles pins were drawn
+    // over; the strip under the map is cheap and is repainted whole.
+    // -Dnetviz.map.cache=false redraws everything every frame instead.
+    private final boolean CACHE_MAP = !"false".equalsIgnoreCase(System.getProperty("netviz.map.cache"));
+    PGraphics mapLayer;
+    DirtyTiles tiles;
     
-    private class pkt {
-      public Date time;
-      public int bytes;
-      public IPAddress ip;
-    }
+    // Smoothed time spent in draw(), for the readout.
+    double drawMillis = 0;
+    
+    // Pin circles are queued here and drawn in one pass over the pixels
+    // at the end of drawPinsOnMap. -Dnetviz.pins.batch=false draws each
+    // with ellipse() instead.
+    private final boolean BATCH_PINS = !"false".equalsIgnoreCase(System.getProperty("netviz.pins.batch"));
+    PinBatch batch = new PinBatch(PIN_CAPACITY * 2);
+    
+    // -Dnetviz.pins.cluster=N counts pins in N pixel cells, and draws
+    // the pins of any cell holding netviz.pins.clusterMin or more as a
+    // single circle. Off when 0.
+    private final int CLUSTER_CELL = Integer.getInteger("netviz.pins.cluster", 0);
+    private final int CLUSTER_MIN = Integer.getInteger("netviz.pins.clusterMin", 4);
+    
+    // -Dnetviz.stress=N adds made up pins, a few each frame up to N over
+    // about a minute, and keeps them busy, logging frame times on the way
+    // to show how drawing scales. They are keyed in 198.18.0.0/15, the
+    // benchmarking range, so they can't collide with real hosts.
+    private final int STRESS = Math.min(Integer.getInteger("netviz.stress", 0), 1 << 17);
+    private final int STRESS_BASE = 0xc6120000;
+    int stressPins = 0;
     
     public void setup() {
+      // first, as a new renderer starts setup() over; PinGraphics lets
+      // batched pins write back just the tiles they cover
+      size(WIDTH, HEIGHT, PinGraphics.class.getName());
+
       // connect to the database of geolocation data
-      try {
-        asnLookup = new LookupService("GeoIPASNum.dat");
-        geoLookup = new LookupService("GeoLiteCity.dat");
-        dbConnected = true;
-      } catch(Exception e) {
-        dbConnected = false;
+      geoDb = GeoDatabase.instance();
+      dbConnected = geoDb.connected();
+      resolver = new GeoResolver(geoDb, GEO_PREFIX, GEO_CACHE, GEO_PENDING);
+      pinMap = new PinMap(resolver, classifier, PIN_CAPACITY, ring.capacity(), WINDOW_SIZE);
+      pinMap.capPins(PIN_MAX, EVICT, EVICT_SAMPLE);
+      if (TOP > 0) {
+        pinMap.trackTop(TOP_COUNTERS, TOP_HALF_LIFE);
+        topKeys = new int[TOP];
+        topCounts = new double[TOP];
+        topErrors = new double[TOP];
       }
 
       // load the map image
       mapImage = loadImage(mapFilename);
-      
-      // setup pins for local, loopback, autoconfig, broadcast.
-      //public Pin(PImage mapImage, float lat, float lon, int asn) {
-      localPin = new Pin(this, mapImage, -105, -160, 0);
-      broadcastPin = new Pin(this, mapImage, -105, -120, 0);
-      loopbackPin = new Pin(this, mapImage, -105, -80, 0);
-      autoconfigPin = new Pin(this, mapImage, -105, -40, 0);
+      if (CLUSTER_CELL > 0) {
+        pinMap.cluster(new PinGrid(mapImage.width, mapImage.height, CLUSTER_CELL, CLUSTER_MIN));
+      }
+      // also places the pins for local, loopback, autoconfig, broadcast
+      pinMap.setMapArea(mapX, mapY, mapImage.width, mapImage.height);
     
-      // 
-      size(WIDTH, HEIGHT);
       background(0x00, 0x55, 0xcc);
+      tiles = new DirtyTiles(mapImage.width, mapImage.height, 32);
+      buildMapLayer();
       frameRate(10);
       lastBG[0] = 0x00;
       lastBG[1] = 0x55;
       lastBG[2] = 0xcc;
-      CarnivoreP5 c = new CarnivoreP5(this);
-      c.setShouldSkipUDP(false);
+      source = PacketSources.open(this, ring);
+      source.start();
+      metrics = VizMetrics.register("NetViz", frameRateTarget, ring, geoDb);
       Log.setDebug(false); // Uncomment this for verbose mode
       //c.setVolumeLimit(4);
       // Use the "Create Font" tool to add a 12 point font to your sketch,
@@ -211,6 +154,15 @@ public class NetViz extends PApplet {
     }
     
     public void draw() {
+      long frameStart = System.nanoTime();
+      now = System.currentTimeMillis();
+      
+      // apply everything the capture thread queued since the last frame
+      pinMap.applyPackets(ring, now, metrics);
+      if (STRESS > 0) {
+        stressPins = pinMap.stress(STRESS_BASE, stressPins, STRESS, Math.max(STRESS / 600, 1));
+      }
+      
       // draw background color according to general traffic rates
       int bg[] = getBackgroundColorFromTrafficSpeed();
       int r = lastBG[0];
@@ -222,63 +174,145 @@ public class NetViz extends PApplet {
       }
       int g = lastBG[1];
       int b = lastBG[2];
-      background(r,g,b);
       lastBG[0] = r;
       lastBG[1] = g;
       lastBG[2] = b;
       
-      drawPointsForNewPackets();
-      drawDbConnectedIndicator();
-    
-      // draw map
-      image(mapImage, mapX, mapY);
+      if (CACHE_MAP) {
+        noStroke();
+        fill(r,g,b);
+        rect(0, mapY + mapImage.height, WIDTH, HEIGHT - mapY - mapImage.height);
+        tiles.restore(this, mapLayer, mapX, mapY);
+      } else {
+        background(r,g,b);
+        image(mapLayer, mapX, mapY);
+      }
       
+      drawPointsForNewPackets();
       drawPinsOnMap();
+      drawTopTalkers();
+      drawDroppedPackets();
+      drawFrameTime();
       
+      long frameNanos = System.nanoTime() - frameStart;
+      drawMillis = drawMillis * 0.9 + frameNanos / 1e6 * 0.1;
+      frameStats.frame(frameNanos);
+      metrics.frame(frameNanos, now);
+      metrics.pins(pinMap.pinCount());
+      metrics.evictions(pinMap.evicted, pinMap.folded);
+      metrics.geoSkipped(resolver.skipped());
+      metrics.windows(pinMap.inNow.total(now), pinMap.inWindow.total(now));
+      if (source.isReplay() || STRESS > 0) {
+        String report = frameStats.report(now, source.delivered(), ring.dropped(), ring.offered());
+        if (report != null) {
+          println("[NetViz] " + (STRESS > 0 ? pinMap.pins.size() + " pins, " : "") + report + metrics.allocationReport());
+        }
+      }
     }
     
-    synchronized private void drawPinsOnMap() {
-      // draw pins on map
-      Iterator<Pin> iter = pins.values().iterator();
-      while (iter.hasNext()) {
-        Pin p = iter.next();
-        boolean keep = p.drawSelf(); 
-        if (!keep) {
-          iter.remove();
-        } 
-      }
-      localPin.drawSelf();
-      broadcastPin.drawSelf();
-      loopbackPin.drawSelf();
-      autoconfigPin.drawSelf();
+    private void drawPinsOnMap() {
+      pinMap.draw(this);
+      batch.render(this);
+    }
+    // Composes the static layers. Call again if any of them change.
+    private void buildMapLayer() {
+      mapLayer = createGraphics(mapImage.width, mapImage.height, JAVA2D);
+      mapLayer.beginDraw();
+      mapLayer.image(mapImage, 0, 0);
+      drawDbConnectedIndicator(mapLayer);
+      mapLayer.endDraw();
+      tiles.markAll();
     }
-    private void drawDbConnectedIndicator() {
+    private void drawDbConnectedIndicator(PGraphics layer) {
       if (dbConnected) {
-        fill(0x00, 0xFF, 0x00); 
+        layer.fill(0x00, 0xFF, 0x00); 
       }
       else {
-        fill(0xFF, 0x00, 0x00); 
+        layer.fill(0xFF, 0x00, 0x00); 
+      }
+      layer.stroke(0);
+      layer.ellipse(15, 15, 10, 10);
+    }
+    // A circle in ARGB colors, an alpha of 0 leaving that part out,
+    // noting the tiles it covers so the map is restored there next frame.
+    public void pinEllipse(float x, float y, float d, int strokeColor, int fillColor) {
+      if (BATCH_PINS) {
+        batch.add(x, y, d, strokeColor, fillColor);
+      } else {
+        // fill(int) reads a color with no alpha as a gray level
+        if ((fillColor >>> 24) == 0) { noFill(); } else { fill(fillColor); }
+        if ((strokeColor >>> 24) == 0) { noStroke(); } else { stroke(strokeColor); }
+        ellipse(x, y, d, d);
+      }
+      tiles.mark(x - mapX, y - mapY, d, d);
+    }
+    // text() at a baseline, likewise.
+    private void layerText(Readout r, float x, float y) {
+      text(r.chars(), 0, r.length(), x, y);
+      tiles.markCorners((int) x - mapX, (int) (y - textAscent()) - mapY,
+          (int) (x + textWidth(r.chars(), 0, r.length())) + 1 - mapX, (int) (y + textDescent()) + 1 - mapY);
+    }
+    private void drawFrameTime() {
+      fill(0xFF, 0xFF, 0xFF);
+      readout.clear().append("draw ").append(drawMillis, 1).append(" ms");
+      if (CACHE_MAP) {
+        readout.append(", ").append(tiles.restored()).append('/').append(tiles.tiles()).append(" tiles");
+      }
+      text(readout.chars(), 0, readout.length(), WIDTH - 160, HEIGHT - 8);
+    }
+    private void drawDroppedPackets() {
+      // only shown once something has been thrown away, at the source
+      // (filtered, or lost by the capture) or here (ring full, ignored)
+      long filtered = source.filtered();
+      long lost = source.lost();
+      long ignored = pinMap.ignored;
+      long evicted = pinMap.evicted;
+      if (filtered > 0 || lost > 0 || ring.dropped() > 0 || ignored > 0 || evicted > 0) {
+        fill(0xFF, 0x00, 0x00);
+        readout.clear().append("source: filtered ").append(filtered).append(" lost ").append(lost)
+            .append("  applet: dropped ").append(ring.dropped()).append(" / ").append(ring.offered())
+            .append(" ignored ").append(ignored);
+        if (evicted > 0) {
+          readout.append(" evicted ").append(evicted);
+          if (pinMap.asnPins != null) {
+            readout.append(" folded ").append(pinMap.folded);
+          }
+        }
+        layerText(readout, 30, 20);
+      }
+    }
+    private void drawTopTalkers() {
+      if (pinMap.topHosts == null) {
+        return;
+      }
+      fill(0xFF, 0xFF, 0xFF);
+      drawTopList(pinMap.topHosts, "top hosts", false, WIDTH - 330, 20);
+      drawTopList(pinMap.topAsns, "top ASNs", true, WIDTH - 130, 20);
+    }
+    private void drawTopList(TopTalkers top, String title, boolean asn, float x, float y) {
+      layerText(readout.clear().append(title), x, y);
+      int n = top.top(TOP, topKeys, topCounts, topErrors);
+      for (int i = 0; i < n; i++) {
+        layerText(pinMap.topLine(readout, asn, topKeys[i], topCounts[i], topErrors[i]), x, y + 14 * (i + 1));
       }
-      ellipse(15, 15, 10, 10);
     }
     private void drawPointsForNewPackets() {
       // draw new packets
-      for (int i=0; i<this.newPackets/2; i++) {
+      for (int i=0; i<pinMap.newPackets/2; i++) {
         stroke(0xFF, 0xFF, 0xFF);
         int x = (int)(random(WIDTH-1));
         int y = (int)(random(mapImage.height, HEIGHT-1));
         point(x,y);
       }
-      this.newPackets = this.newPackets/2;
+      pinMap.newPackets = pinMap.newPackets/2;
       stroke(0);  
       
     }
     
+    // Fills and returns bg, the same array every frame.
     int[] getBackgroundColorFromTrafficSpeed() {
     
-      int lastSecondBytes = sumList(inNow);
-      
-      prune();
+      long lastSecondBytes = pinMap.inNow.total(now);
       
       double logSecondBytes = Math.log10(lastSecondBytes);
     //  int logWindowBytes = int(Math.log((double)lastWindowBytes));
@@ -296,199 +330,45 @@ public class NetViz extends PApplet {
       if (r > 255) {
         r = 255; 
       }
-      int toReturn[] = {r, 0x55, 0xcc};
-      return toReturn;
-    }
-    
-    synchronized void prune() {
-      pkt p;
-      // prune old data from last second buffer
-      while (inNow.size() > 0) {
-        p = inNow.remove();
-        if (! (p.time.getTime() + 1000 < new Date().getTime())) {
-          inNow.addFirst(p);
-          break; 
-        }
-        else {
-          Pin pin;
-          String reserved = isReserved(p.ip);
-          if (reserved == null) {
-            pin = pins.get(p.ip.toString());
-          }
-          else if (reserved.equals(LOCAL_IP)) { 
-            pin = localPin;
-          }
-          else if (reserved.equals(BROADCAST_IP)) {
-            pin = broadcastPin;
-          }
-          else if (reserved.equals(LOOPBACK_IP)) {
-            pin = loopbackPin;
-          }
-          else if (reserved.equals(AUTOCONFIG_IP)) {  
-            pin = autoconfigPin;
-          }
-          else {
-            pin = null; 
-          }
-          if (pin != null) {
-            pin.subBytes(p.bytes);
-          }
-        }
-      }  
-      // prune old data from last minute buffer
-      while (inWindow.size() > 0) {
-        p = inWindow.remove();
-        if (! (p.time.getTime() + 1000*WINDOW_SIZE < new Date().getTime())) {
-           inWindow.addFirst(p);
-           break;
-        } 
-      } 
-    }
-    synchronized int sumList(LinkedList<pkt> l) {
-      Iterator<pkt> iter = l.descendingIterator();
-      int sum = 0;
-      while (iter.hasNext()) {
-        pkt p = iter.next();
-        sum += p.bytes;
-      }
-    //  System.out.println(count+" "+sum); 
-      return sum;
+      bg[0] = r;
+      bg[1] = 0x55;
+      bg[2] = 0xcc;
+      return bg;
     }
     
-    String getCityByIP(IPAddress ip) {
+    String getCityByIP(int ip) {
       if (!dbConnected) {
         return null; 
       }
-      Location loc = geoLookup.getLocation(ip.ip);
-      if (loc != null && loc.city != null) {
-          return loc.city;
-      } else {
-    	  return "NONE";
-      }
+      return resolver.resolve(ip).city;
     }
 
-    String getCountryByIP(IPAddress ip) {
+    String getCountryByIP(int ip) {
       if (!dbConnected) {
         return null; 
       }
-
-      Location loc = geoLookup.getLocation(ip.ip);
-      if (loc != null && loc.countryName != null) {
-          return loc.countryName;
-      } else {
-    	  return "NONE";
-      }
+      return resolver.resolve(ip).country;
     }
     
-    float[] getLatLonByIP(IPAddress ip) {
-      float lat = 1000;
-      float lng = 1000;
+    float[] getLatLonByIP(int ip) {
       if (!dbConnected) {
         return null;
       }
-
-      Location loc = geoLookup.getLocation(ip.ip);
-      if (loc != null) {
-          lat = loc.latitude;
-          lng = loc.longitude;
-      }
-      
-      float[] latlon = {lat, lng};
+      GeoResolver.Geo geo = resolver.resolve(ip);
+      float[] latlon = {geo.lat, geo.lon};
       return latlon;
     }
     
-    int getASNByIP(IPAddress ip) {
-    	return asnLookup.getID(ip.ip);
+    int getASNByIP(int ip) {
+    	return resolver.resolve(ip).asn;
     }
     
-    // Called each time a new packet arrives
-    public synchronized void packetEvent(CarnivorePacket packet) {
-      pkt pkt = new pkt();
-      pkt.time = new Date();
-      pkt.ip = packet.senderAddress;
-      pkt.bytes = packet.data.length;
-      
-      if (pkt.bytes == 0) {
-        return;
-      }
-      IPAddress ip = packet.senderAddress;
-      
-      String reserved = isReserved(ip);
-      if (reserved == null) {
-        Pin p;
-        if (pins.containsKey(packet.senderAddress.toString())) {
-          p = pins.get(packet.senderAddress.toString()); 
-        }
-        else {
-          float[] latlon = getLatLonByIP(ip);
-          float lat = latlon[0];
-          float lon = latlon[1];
-          int asn = getASNByIP(ip);
-    
-          p = new Pin(this, mapImage, lat, lon, asn);
-          pins.put(ip.toString(), p);
-        }
-        p.addBytes(pkt.bytes);  
-      }  
-      else if (reserved == LOCAL_IP) { 
-        localPin.addBytes(pkt.bytes);
-      }
-      else if (reserved == BROADCAST_IP) {
-        broadcastPin.addBytes(pkt.bytes);
-      }
-      else if (reserved == LOOPBACK_IP) {
-        loopbackPin.addBytes(pkt.bytes);
-      }
-      else if (reserved == AUTOCONFIG_IP) {  
-        autoconfigPin.addBytes(pkt.bytes);
-      }
-      else { //testnet or other - shouldn't see these, ignore them?
-        return;
-      }
-      //println(reserved);
-      inWindow.add(pkt);
-      inNow.add(pkt);
-      
-      newPackets++;
+    // Called each time a new packet arrives, on Carnivore's thread.
+    // The source only queues it; the draw thread applies it next frame.
+    public void packetEvent(CarnivorePacket packet) {
+      ((CarnivoreSource) source).packetEvent(packet);
     }
     
-    private String isReserved(IPAddress ip) {
-      if (    ip.octet1() == 10    ||
-             (ip.octet1() == 172 && ip.octet2() >= 16 && ip.octet2() <= 31)  ||
-             (ip.octet1() == 192 && ip.octet2() == 168)   ) { 
-               
-               return LOCAL_IP;
-               
-      }
-      if (    ip.octet1() == 127     ) {
-        
-               return LOOPBACK_IP; 
-      }
-      if (    ip.octet1() == 0     || 
-              ip.octet1() == 255 && ip.octet2() == 255 && ip.octet3() == 255 && ip.octet4() == 255   ) {
-                
-               return BROADCAST_IP;          
-      }
-      if (    (ip.octet1() == 169 && ip.octet2() == 254)    ) {
-        
-               return AUTOCONFIG_IP; 
-      }         
-      if (    (ip.octet1() == 198 && ip.octet2() == 51 && ip.octet3() == 100)  ||
-              (ip.octet1() == 203 && ip.octet2() == 0  && ip.octet3() == 113)  ||
-              (ip.octet1() == 192 && ip.octet2() == 0  && ip.octet3() == 2)     ) {
-                
-               return TESTNET_IP;          
-      }
-      if (    ip.octet1() >= 224   ||      
-              ip.octet1() >= 240   ||
-              (ip.octet1() == 192 && ip.octet2() == 88 && ip.octet3() == 99)   ||          
-              (ip.octet1() == 198 && ip.octet2() >= 18 && ip.octet2() <= 19)    ) {
-      
-               return OTHER_IP;          
-      }
-      return null;
-    }
-
 	public static void main(String args[]) {
 	    PApplet.main(new String[] { "--present", "com.p2pbr.netviz.NetViz" });
 	}
@@ -0,0 +1,116 @@
+package com.p2pbr.netviz;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// A bounded single-producer/single-consumer ring of packet records.
+// The capture thread appends (time, IPv4, length) triples with offer(),
+// the draw thread empties the ring once per frame with drain(). Neither
+// side takes a lock or blocks: a full ring simply drops the packet and
+// counts it, so we can tell when the visualizer can't keep up.
+//
+// Every PacketSource delivers from a single thread of its own (Carnivore
+// from its cache thread), which is what makes the one-producer
+// assumption hold.
+class PacketRing implements PacketSink {
+
+	// Records are stored column-wise, one array per field.
+	private final long[] times;
+	private final int[] ips;
+	private final int[] lengths;
+	private final int capacity;
+	private final int mask;
+
+	// Sequence numbers. head is only written by the producer, tail only
+	// by the consumer; lazySet is enough to publish them to the other side.
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong tail = new AtomicLong();
+
+	// Producer-local copy of tail, so offer() only reads the consumer's
+	// sequence when the ring looks full.
+	private long cachedTail = 0;
+
+	// Counters. offered/dropped are owned by the producer, highWater by
+	// the consumer, so each stays single-writer.
+	private final AtomicLong offered = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong highWater = new AtomicLong();
+
+	// Capacity is rounded up to a power of two.
+	public PacketRing(int requested) {
+		int cap = 1;
+		while (cap < requested) {
+			cap <<= 1;
+		}
+		capacity = cap;
+		mask = cap - 1;
+		times = new long[cap];
+		ips = new int[cap];
+		lengths = new int[cap];
+	}
+
+	// Producer side. Returns false if the ring was full and the record dropped.
+	public boolean offer(long time, int ip, int length) {
+		long h = head.get();
+		offered.lazySet(offered.get() + 1);
+		if (h - cachedTail >= capacity) {
+			cachedTail = tail.get();
+			if (h - cachedTail >= capacity) {
+				dropped.lazySet(dropped.get() + 1);
+				return false;
+			}
+		}
+		int i = (int) h & mask;
+		times[i] = time;
+		ips[i] = ip;
+		lengths[i] = length;
+		head.lazySet(h + 1);
+		return true;
+	}
+
+	public void packet(long time, int ip, int length) {
+		offer(time, ip, length);
+	}
+
+	// Consumer side. Copies up to outTimes.length pending records into the
+	// given arrays and returns how many were copied.
+	public int drain(long[] outTimes, int[] outIps, int[] outLengths) {
+		long t = tail.get();
+		long pending = head.get() - t;
+		if (pending > highWater.get()) {
+			highWater.lazySet(pending);
+		}
+		int n = (int) Math.min(pending, outTimes.length);
+		for (int k = 0; k < n; k++) {
+			int i = (int) (t + k) & mask;
+			outTimes[k] = times[i];
+			outIps[k] = ips[i];
+			outLengths[k] = lengths[i];
+		}
+		tail.lazySet(t + n);
+		return n;
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+
+	// Records waiting to be drained.
+	public int size() {
+		return (int) (head.get() - tail.get());
+	}
+
+	// Total records offered by the capture thread, accepted or not.
+	public long offered() {
+		return offered.get();
+	}
+
+	// Records thrown away because the ring was full.
+	public long dropped() {
+		return dropped.get();
+	}
+
+	// Deepest the ring has been when drained.
+	public long highWater() {
+		return highWater.get();
+	}
+}
@@ -0,0 +1,8 @@
+package com.p2pbr.netviz;
+
+// Where a PacketSource delivers packets: the sender's IPv4 address and
+// the payload length, stamped with the wall clock time of delivery.
+// Called from the source's own thread.
+interface PacketSink {
+	void packet(long time, int ip, int length);
+}
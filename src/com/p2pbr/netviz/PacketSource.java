@@ -0,0 +1,26 @@
+package com.p2pbr.netviz;
+
+// Something that feeds packets to a PacketSink: a live capture, or a
+// recording played back. Sources run on a thread of their own.
+interface PacketSource {
+	void start();
+
+	void stop();
+
+	// True if the source couldn't be opened, e.g. no capture privileges.
+	boolean failed();
+
+	// True for recorded traffic rather than a live capture.
+	boolean isReplay();
+
+	// Packets handed to the sink so far.
+	long delivered();
+
+	// Packets the source read but threw away itself, not wanted by its
+	// CaptureFilter or not IPv4 with a payload.
+	long filtered();
+
+	// Packets the capture lost before the source saw them, e.g. the
+	// kernel's buffer overflowing. 0 where that can't happen.
+	long lost();
+}
@@ -0,0 +1,32 @@
+package com.p2pbr.netviz;
+
+import processing.core.PApplet;
+
+// Picks the packet source the netviz.* properties ask for:
+//
+//   netviz.replay                  replay a capture file
+//   netviz.capture.device, or any  live capture through jpcap, with the
+//   netviz.capture.* filter        filter in the kernel
+//   otherwise                      live capture through Carnivore
+//
+// The source comes back not yet started: an applet using Carnivore has to
+// pass its packetEvent on to the CarnivoreSource this returns, so it sets
+// its field first and only then calls start(), or Carnivore's first
+// packets would find the field still null.
+final class PacketSources {
+	private PacketSources() {}
+
+	public static PacketSource open(PApplet applet, PacketSink sink) {
+		CaptureFilter filter = CaptureFilter.fromProperties();
+		PacketSource source = PcapReplaySource.fromProperties(sink, filter);
+		if (source == null) {
+			String device = System.getProperty("netviz.capture.device");
+			if (device != null || !filter.isEmpty()) {
+				source = new PcapSource(device, sink, filter);
+			} else {
+				source = new CarnivoreSource(applet, sink, filter);
+			}
+		}
+		return source;
+	}
+}
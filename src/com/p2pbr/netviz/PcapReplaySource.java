@@ -0,0 +1,207 @@
+package com.p2pbr.netviz;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Plays a classic libpcap capture file back into a PacketSink, so the
+// visualizers can run without capture privileges and be pushed harder
+// than live traffic would. No native code: the file is read directly.
+//
+// speed 1 keeps the recorded timing, N plays N times faster, and 0
+// plays as fast as the file can be read. Nothing waits on the sink: a
+// PacketRing never blocks, so packets past its capacity are dropped and
+// counted in its dropped(), as they would be from a live capture.
+//
+// Only IPv4 packets are delivered, with the length of their transport
+// payload, which is what Carnivore reports for a live packet. There is
+// no kernel here to push a filter down to, so the CaptureFilter is
+// checked in Java straight after each frame is read; a raw BPF
+// expression is ignored.
+class PcapReplaySource implements PacketSource {
+
+	private final File file;
+	private final PacketSink sink;
+	private final CaptureFilter filter;
+	private final Frame frame = new Frame();
+	private final float speed;
+	private final boolean loop;
+	private Thread thread;
+	private volatile boolean running = false;
+	private volatile boolean failed = false;
+
+	// Only written from the replay thread.
+	private final AtomicLong delivered = new AtomicLong();
+	private final AtomicLong filtered = new AtomicLong();
+
+	public PcapReplaySource(File file, PacketSink sink, CaptureFilter filter, float speed, boolean loop) {
+		this.file = file;
+		this.sink = sink;
+		this.filter = filter;
+		this.speed = speed;
+		this.loop = loop;
+	}
+
+	// The replay the netviz.replay.* properties ask for, or null to
+	// capture live.
+	public static PcapReplaySource fromProperties(PacketSink sink, CaptureFilter filter) {
+		String path = System.getProperty("netviz.replay");
+		if (path == null || path.length() == 0) {
+			return null;
+		}
+		float speed = Float.parseFloat(System.getProperty("netviz.replay.speed", "1"));
+		return new PcapReplaySource(new File(path), sink, filter, speed, Boolean.getBoolean("netviz.replay.loop"));
+	}
+
+	public void start() {
+		running = true;
+		thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					do {
+						replay();
+					} while (loop && running);
+				} catch (IOException e) {
+					e.printStackTrace();
+					failed = true;
+				}
+			}
+		}, "PcapReplay");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void stop() {
+		running = false;
+		if (thread != null) {
+			thread.interrupt();
+		}
+	}
+
+	public boolean failed() {
+		return failed;
+	}
+
+	public boolean isReplay() {
+		return true;
+	}
+
+	public long delivered() {
+		return delivered.get();
+	}
+
+	public long filtered() {
+		return filtered.get();
+	}
+
+	public long lost() {
+		return 0;
+	}
+
+	// One pass over the file.
+	private void replay() throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+		try {
+			byte[] header = new byte[24];
+			readFully(in, header, 24);
+			int magic = readInt(header, 0, false);
+			boolean littleEndian;
+			boolean nanos;
+			if (magic == 0xa1b2c3d4 || magic == 0xa1b23c4d) {
+				littleEndian = false;
+				nanos = magic == 0xa1b23c4d;
+			} else if (magic == 0xd4c3b2a1 || magic == 0x4d3cb2a1) {
+				littleEndian = true;
+				nanos = magic == 0x4d3cb2a1;
+			} else {
+				throw new IOException(file + " is not a pcap file");
+			}
+			int linkType = readInt(header, 20, littleEndian) & 0xffff;
+
+			byte[] record = new byte[16];
+			byte[] data = new byte[1 << 16];
+			long firstMicros = -1;
+			long startNanos = System.nanoTime();
+			long packets = 0;
+
+			while (running) {
+				long seconds, fraction;
+				int captured, original;
+				try {
+					readFully(in, record, 16);
+					seconds = readInt(record, 0, littleEndian) & 0xffffffffL;
+					fraction = readInt(record, 4, littleEndian) & 0xffffffffL;
+					captured = readInt(record, 8, littleEndian);
+					original = readInt(record, 12, littleEndian);
+					if (captured < 0 || captured > (1 << 24)) {
+						throw new IOException(file + " has a corrupt record");
+					}
+					if (captured > data.length) {
+						data = new byte[captured];
+					}
+					readFully(in, data, captured);
+				} catch (EOFException e) {
+					break; // a capture cut short ends at its last whole packet
+				}
+
+				// Hold the packet back until its time comes around.
+				long micros = seconds * 1000000 + (nanos ? fraction / 1000 : fraction);
+				if (firstMicros < 0) {
+					firstMicros = micros;
+				}
+				if (speed > 0) {
+					long dueNanos = startNanos + (long) ((micros - firstMicros) * 1000 / speed);
+					long wait = dueNanos - System.nanoTime();
+					if (wait > 1000000) {
+						try {
+							Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+						} catch (InterruptedException e) {
+							break;
+						}
+					}
+				}
+
+				deliver(data, captured, original, linkType);
+				packets++;
+			}
+
+			long millis = (System.nanoTime() - startNanos) / 1000000;
+			System.out.println("[PcapReplay] " + packets + " packets from " + file.getName() + " in " + millis + " ms, "
+					+ (millis > 0 ? packets * 1000 / millis : packets) + " packets/s sustained, " + delivered() + " delivered in all");
+		} finally {
+			in.close();
+		}
+	}
+
+	// Decodes one frame and delivers it, unless the filter says not to.
+	private void deliver(byte[] data, int captured, int original, int linkType) {
+		if (!frame.decode(data, captured, original, linkType) || frame.payload == 0 || !filter.accepts(frame)) {
+			filtered.lazySet(filtered.get() + 1);
+			return;
+		}
+		sink.packet(System.currentTimeMillis(), frame.sender, frame.payload);
+		delivered.lazySet(delivered.get() + 1);
+	}
+
+	private static int readInt(byte[] b, int i, boolean littleEndian) {
+		if (littleEndian) {
+			return (b[i] & 0xff) | ((b[i + 1] & 0xff) << 8) | ((b[i + 2] & 0xff) << 16) | ((b[i + 3] & 0xff) << 24);
+		}
+		return ((b[i] & 0xff) << 24) | ((b[i + 1] & 0xff) << 16) | ((b[i + 2] & 0xff) << 8) | (b[i + 3] & 0xff);
+	}
+
+	private static void readFully(InputStream in, byte[] b, int length) throws IOException {
+		int n = 0;
+		while (n < length) {
+			int r = in.read(b, n, length - n);
+			if (r < 0) {
+				throw new EOFException();
+			}
+			n += r;
+		}
+	}
+}
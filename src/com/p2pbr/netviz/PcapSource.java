@@ -0,0 +1,110 @@
+package com.p2pbr.netviz;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sourceforge.jpcap.capture.CaptureStatistics;
+import net.sourceforge.jpcap.capture.PacketCapture;
+
+// Live capture straight through jpcap, on one device, with the whole
+// CaptureFilter compiled to BPF and installed in the kernel. Packets
+// it rejects are never copied into Java at all.
+//
+// Frames are decoded from the raw bytes as they arrive, skipping the
+// packet objects jpcap would otherwise build for each one.
+class PcapSource implements PacketSource {
+	private static final int SNAP_LENGTH = 128; // headers are all we read
+	private static final int TIMEOUT_MILLIS = 1000;
+
+	private final String device;
+	private final PacketSink sink;
+	private final CaptureFilter filter;
+	private final Frame frame = new Frame();
+	private PacketCapture capture;
+	private Thread thread;
+	private volatile boolean failed = false;
+
+	// Only written from the capture thread.
+	private final AtomicLong delivered = new AtomicLong();
+	private final AtomicLong filtered = new AtomicLong();
+
+	// device may be null for the default one.
+	public PcapSource(String device, PacketSink sink, CaptureFilter filter) {
+		this.device = device;
+		this.sink = sink;
+		this.filter = filter;
+	}
+
+	public void start() {
+		final int[] link = new int[1];
+		capture = new PacketCapture() {
+			public void handlePacket(int length, int captured, int seconds, int micros, byte[] data) {
+				if (!frame.decode(data, Math.min(captured, data.length), length, link[0]) || frame.payload == 0) {
+					filtered.lazySet(filtered.get() + 1);
+					return;
+				}
+				sink.packet(System.currentTimeMillis(), frame.sender, frame.payload);
+				delivered.lazySet(delivered.get() + 1);
+			}
+		};
+		String name = device;
+		try {
+			if (name == null) {
+				name = capture.findDevice();
+			}
+			capture.open(name, SNAP_LENGTH, true, TIMEOUT_MILLIS);
+			capture.setFilter(filter.bpf(), true);
+			link[0] = capture.getLinkLayerType();
+		} catch (Exception e) {
+			System.err.println("[PcapSource] can't capture on " + name + " with \"" + filter.bpf() + "\": " + e);
+			failed = true;
+			return;
+		}
+		System.out.println("[PcapSource] capturing on " + name + " with \"" + filter.bpf() + "\"");
+
+		thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					capture.capture(-1);
+				} catch (Exception e) {
+					e.printStackTrace();
+					failed = true;
+				}
+			}
+		}, "PcapSource");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void stop() {
+		if (capture != null && !failed) {
+			capture.endCapture();
+			capture.close();
+		}
+	}
+
+	public boolean failed() {
+		return failed;
+	}
+
+	public boolean isReplay() {
+		return false;
+	}
+
+	public long delivered() {
+		return delivered.get();
+	}
+
+	// The kernel filter drops packets without counting them, so this is
+	// only what got past it and still wasn't usable.
+	public long filtered() {
+		return filtered.get();
+	}
+
+	public long lost() {
+		if (capture == null || failed) {
+			return 0;
+		}
+		CaptureStatistics stats = capture.getStatistics();
+		return stats == null ? 0 : stats.getDroppedCount();
+	}
+}
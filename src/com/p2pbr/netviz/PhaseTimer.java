@@ -0,0 +1,42 @@
+package com.p2pbr.netviz;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Accumulates time spent in named phases of a job, from any number of
+// threads. Phases run by several workers at once add up their time, so
+// those figures are thread time rather than wall time.
+class PhaseTimer {
+	private final LinkedHashMap<String, AtomicLong> phases = new LinkedHashMap<String, AtomicLong>();
+
+	// The phases, in the order report() lists them. Fixed from here on,
+	// which is what lets add() run without locking.
+	public PhaseTimer(String... names) {
+		for (int i = 0; i < names.length; i++) {
+			phases.put(names[i], new AtomicLong());
+		}
+	}
+
+	public void add(String phase, long nanos) {
+		phases.get(phase).addAndGet(nanos);
+	}
+
+	public long millis(String phase) {
+		return phases.get(phase).get() / 1000000;
+	}
+
+	public String report() {
+		StringBuilder sb = new StringBuilder();
+		Iterator<Map.Entry<String, AtomicLong>> iter = phases.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry<String, AtomicLong> e = iter.next();
+			sb.append(e.getKey()).append(' ').append(e.getValue().get() / 1000000).append(" ms");
+			if (iter.hasNext()) {
+				sb.append(", ");
+			}
+		}
+		return sb.toString();
+	}
+}
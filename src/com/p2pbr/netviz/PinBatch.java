@@ -0,0 +1,303 @@
+package com.p2pbr.netviz;
+
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+
+import processing.core.PApplet;
+
+// Collects a frame's pin circles and draws them all in one pass over
+// the applet's pixels, instead of a fill()/stroke()/ellipse() round trip
+// through Java2D for every one. Each circle size is rasterized once into
+// a Stamp (row spans for the fill, offsets for the outline) and reused.
+//
+// Circles are drawn in the order they were added, fill then outline,
+// as ellipse() would. Colors are ARGB; an alpha of 0 skips that part.
+//
+// Drawn into an applet using PinGraphics, only the tiles the circles
+// cover are read from and written back to the window, so a frame with
+// a few pins moves a few tiles rather than every pixel.
+class PinBatch {
+
+	// Tile size, in pixels, for moving pixels to and from the window.
+	static final int TILE = 32;
+
+	// One circle size, relative to its centre pixel.
+	private static class Stamp {
+		int[] spanDy;    // fill: one span per row
+		int[] spanHalf;  // half width of the span on that row
+		int[] ringDx;    // outline pixels
+		int[] ringDy;
+
+		Stamp(int diameter) {
+			float r = diameter / 2f;
+			int reach = (int) Math.ceil(r);
+			int rows = 2 * reach + 1;
+			spanDy = new int[rows];
+			spanHalf = new int[rows];
+			int n = 0;
+			for (int dy = -reach; dy <= reach; dy++) {
+				int half = halfWidth(r, dy);
+				if (half >= 0) {
+					spanDy[n] = dy;
+					spanHalf[n] = half;
+					n++;
+				}
+			}
+			spanDy = Arrays.copyOf(spanDy, n);
+			spanHalf = Arrays.copyOf(spanHalf, n);
+
+			// the outline is every fill pixel with a neighbour outside it
+			int[] dxs = new int[rows * 4 + 4];
+			int[] dys = new int[rows * 4 + 4];
+			int m = 0;
+			for (int i = 0; i < n; i++) {
+				int dy = spanDy[i];
+				int half = spanHalf[i];
+				int above = halfWidth(r, dy - 1);
+				int below = halfWidth(r, dy + 1);
+				int inner = Math.min(above, below); // covered above and below
+				for (int dx = -half; dx <= half; dx++) {
+					int adx = Math.abs(dx);
+					if (adx == half || adx > inner) {
+						if (m == dxs.length) {
+							dxs = Arrays.copyOf(dxs, m * 2);
+							dys = Arrays.copyOf(dys, m * 2);
+						}
+						dxs[m] = dx;
+						dys[m] = dy;
+						m++;
+					}
+				}
+			}
+			ringDx = Arrays.copyOf(dxs, m);
+			ringDy = Arrays.copyOf(dys, m);
+		}
+
+		// Half width of the disc on row dy, or -1 if the row misses it.
+		// The r / 2 rounds the edge off, as the midpoint circle does;
+		// without it each side ends in a single pixel spike.
+		private static int halfWidth(float r, int dy) {
+			float w = r * r + r / 2 - dy * dy;
+			return w < 0 ? -1 : (int) Math.sqrt(w);
+		}
+	}
+
+	// Stamps by diameter, made on first use.
+	private Stamp[] stamps = new Stamp[64];
+
+	private float[] xs;
+	private float[] ys;
+	private int[] diameters;
+	private int[] strokes;
+	private int[] fills;
+	private int count = 0;
+
+	// For render(PApplet): the tiles this batch covers, the window's
+	// pixels (current only under those tiles), and one run of tiles'
+	// worth in transit.
+	private boolean[] covered = new boolean[0];
+	private int[] window = new int[0];
+	private int[] run = new int[0];
+
+	public PinBatch(int capacity) {
+		capacity = Math.max(capacity, 16);
+		xs = new float[capacity];
+		ys = new float[capacity];
+		diameters = new int[capacity];
+		strokes = new int[capacity];
+		fills = new int[capacity];
+	}
+
+	public int size() {
+		return count;
+	}
+
+	// A circle of the given diameter centred on (x, y).
+	public void add(float x, float y, float diameter, int stroke, int fill) {
+		if (count == xs.length) {
+			int capacity = count * 2;
+			xs = Arrays.copyOf(xs, capacity);
+			ys = Arrays.copyOf(ys, capacity);
+			diameters = Arrays.copyOf(diameters, capacity);
+			strokes = Arrays.copyOf(strokes, capacity);
+			fills = Arrays.copyOf(fills, capacity);
+		}
+		xs[count] = x;
+		ys[count] = y;
+		diameters[count] = Math.max((int) diameter, 1);
+		strokes[count] = stroke;
+		fills[count] = fill;
+		count++;
+	}
+
+	// Draws everything added since the last render, then empties the batch.
+	public void render(PApplet p) {
+		if (count == 0) {
+			return;
+		}
+		if (!(p.g instanceof PinGraphics)) {
+			p.loadPixels();
+			render(p.pixels, p.width, p.height);
+			p.updatePixels();
+			return;
+		}
+		render(((PinGraphics) p.g).raster(), p.width, p.height);
+	}
+
+	// The same straight into a width by height ARGB raster, moving only
+	// the tiles the circles cover.
+	void render(WritableRaster raster, int width, int height) {
+		int cols = (width + TILE - 1) / TILE;
+		int rows = (height + TILE - 1) / TILE;
+		if (window.length != width * height) {
+			covered = new boolean[cols * rows];
+			window = new int[width * height];
+		}
+		int tiles = 0;
+		int half = cols * rows / 2;
+		for (int i = 0; i < count && tiles < half; i++) {
+			int reach = (int) Math.ceil(diameters[i] / 2f);
+			int cx = (int) xs[i];
+			int cy = (int) ys[i];
+			int x0 = Math.max(cx - reach, 0);
+			int y0 = Math.max(cy - reach, 0);
+			int x1 = Math.min(cx + reach, width - 1);
+			int y1 = Math.min(cy + reach, height - 1);
+			if (x0 > x1 || y0 > y1) {
+				continue;
+			}
+			for (int row = y0 / TILE; row <= y1 / TILE; row++) {
+				for (int col = x0 / TILE; col <= x1 / TILE; col++) {
+					if (!covered[row * cols + col]) {
+						covered[row * cols + col] = true;
+						tiles++;
+					}
+				}
+			}
+		}
+
+		// Past half the tiles, one copy of the whole window beats many
+		// small ones, as with DirtyTiles.
+		if (tiles >= half) {
+			Arrays.fill(covered, false);
+			raster.getDataElements(0, 0, width, height, window);
+			render(window, width, height);
+			raster.setDataElements(0, 0, width, height, window);
+			return;
+		}
+		transfer(raster, width, height, cols, rows, true);
+		render(window, width, height);
+		transfer(raster, width, height, cols, rows, false);
+	}
+
+	// Copies each run of covered tiles along a row from the raster into
+	// window, or back again, clearing covered as it goes.
+	private void transfer(WritableRaster raster, int width, int height, int cols, int rows, boolean in) {
+		for (int row = 0; row < rows; row++) {
+			int col = 0;
+			while (col < cols) {
+				if (!covered[row * cols + col]) {
+					col++;
+					continue;
+				}
+				int start = col;
+				while (col < cols && covered[row * cols + col]) {
+					if (!in) {
+						covered[row * cols + col] = false;
+					}
+					col++;
+				}
+				int x0 = start * TILE;
+				int y0 = row * TILE;
+				int w = Math.min(col * TILE, width) - x0;
+				int h = Math.min(y0 + TILE, height) - y0;
+				if (run.length < w * h) {
+					run = new int[w * h];
+				}
+				if (in) {
+					raster.getDataElements(x0, y0, w, h, run);
+					for (int r = 0; r < h; r++) {
+						System.arraycopy(run, r * w, window, (y0 + r) * width + x0, w);
+					}
+				} else {
+					for (int r = 0; r < h; r++) {
+						System.arraycopy(window, (y0 + r) * width + x0, run, r * w, w);
+					}
+					raster.setDataElements(x0, y0, w, h, run);
+				}
+			}
+		}
+	}
+
+	// The same into a bare width by height array of ARGB pixels, for
+	// drawing without Processing.
+	public void render(int[] pixels, int width, int height) {
+		for (int i = 0; i < count; i++) {
+			Stamp s = stamp(diameters[i]);
+			int cx = (int) xs[i];
+			int cy = (int) ys[i];
+			int fill = fills[i];
+			if ((fill >>> 24) != 0) {
+				for (int k = 0; k < s.spanDy.length; k++) {
+					int y = cy + s.spanDy[k];
+					if (y < 0 || y >= height) {
+						continue;
+					}
+					int x0 = Math.max(cx - s.spanHalf[k], 0);
+					int x1 = Math.min(cx + s.spanHalf[k], width - 1);
+					if (x0 > x1) {
+						continue;
+					}
+					int row = y * width;
+					if ((fill >>> 24) == 0xff) {
+						Arrays.fill(pixels, row + x0, row + x1 + 1, fill);
+					} else {
+						for (int x = x0; x <= x1; x++) {
+							pixels[row + x] = blend(pixels[row + x], fill);
+						}
+					}
+				}
+			}
+			int stroke = strokes[i];
+			if ((stroke >>> 24) != 0) {
+				boolean opaque = (stroke >>> 24) == 0xff;
+				for (int k = 0; k < s.ringDx.length; k++) {
+					int x = cx + s.ringDx[k];
+					int y = cy + s.ringDy[k];
+					if (x < 0 || x >= width || y < 0 || y >= height) {
+						continue;
+					}
+					int at = y * width + x;
+					pixels[at] = opaque ? stroke : blend(pixels[at], stroke);
+				}
+			}
+		}
+		count = 0;
+	}
+
+	private Stamp stamp(int diameter) {
+		if (diameter >= stamps.length) {
+			stamps = Arrays.copyOf(stamps, Math.max(diameter + 1, stamps.length * 2));
+		}
+		Stamp s = stamps[diameter];
+		if (s == null) {
+			s = new Stamp(diameter);
+			stamps[diameter] = s;
+		}
+		return s;
+	}
+
+	// src over dst; the result is opaque, as the window is.
+	private static int blend(int dst, int src) {
+		int a = src >>> 24;
+		int na = 255 - a;
+		int r = (((src >> 16) & 0xff) * a + ((dst >> 16) & 0xff) * na) / 255;
+		int g = (((src >> 8) & 0xff) * a + ((dst >> 8) & 0xff) * na) / 255;
+		int b = ((src & 0xff) * a + (dst & 0xff) * na) / 255;
+		return 0xff000000 | (r << 16) | (g << 8) | b;
+	}
+
+	static int argb(int a, int r, int g, int b) {
+		return (a << 24) | (r << 16) | (g << 8) | b;
+	}
+}
@@ -0,0 +1,23 @@
+package com.p2pbr.netviz;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+
+import processing.core.PGraphicsJava2D;
+
+// Processing's Java2D renderer, letting PinBatch at the pixels it draws
+// into. Java2D's loadPixels() and updatePixels() copy the whole window
+// every time, and in Processing 1.x updatePixels(x, y, w, h) just warns
+// and does the same, so PinBatch moves only the tiles its pins cover
+// through raster() instead.
+//
+// size() makes renderers by class name, so this has to be public with
+// a no argument constructor: size(w, h, PinGraphics.class.getName()).
+public class PinGraphics extends PGraphicsJava2D {
+
+	// What drawing lands in: the offscreen buffer when this is the
+	// window, the image itself otherwise.
+	WritableRaster raster() {
+		return (primarySurface ? offscreen : (BufferedImage) image).getRaster();
+	}
+}
@@ -0,0 +1,128 @@
+package com.p2pbr.netviz;
+
+// Pins counted by square cell over the map, kept up to date as pins are
+// placed and dropped, so the draw loop can tell where they crowd.
+//
+// Pins in a cell holding at least `dense` of them aren't drawn one by
+// one: each frame they gather() their bytes here instead, and then one
+// circle per crowded cell is drawn at their centre. The cell takes the
+// colour of its busiest pin's ASN. Drawing then costs at most one circle
+// per cell in crowded areas, however many hosts are behind them.
+//
+// Coordinates are relative to the map's corner. Draw thread only.
+class PinGrid {
+	private final int cellSize;
+	private final int cols;
+	private final int rows;
+	private final int dense;
+
+	// Pins per cell.
+	private final int[] pins;
+
+	// This frame's clusters, by cell, and the cells that have one.
+	private final long[] bytes;
+	private final float[] sumX;
+	private final float[] sumY;
+	private final int[] members;
+	private final int[] topAsn;
+	private final long[] topBytes;
+	private final int[] clusters;
+	private int clusterCount = 0;
+
+	public PinGrid(int width, int height, int cellSize, int dense) {
+		this.cellSize = Math.max(cellSize, 1);
+		this.dense = Math.max(dense, 2);
+		cols = (width + this.cellSize - 1) / this.cellSize;
+		rows = (height + this.cellSize - 1) / this.cellSize;
+		int cells = cols * rows;
+		pins = new int[cells];
+		bytes = new long[cells];
+		sumX = new float[cells];
+		sumY = new float[cells];
+		members = new int[cells];
+		topAsn = new int[cells];
+		topBytes = new long[cells];
+		clusters = new int[cells];
+	}
+
+	// The cell (x, y) falls in, or -1 if it's off the map.
+	public int cell(float x, float y) {
+		if (x < 0 || y < 0) {
+			return -1;
+		}
+		int col = (int) x / cellSize;
+		int row = (int) y / cellSize;
+		if (col >= cols || row >= rows) {
+			return -1;
+		}
+		return row * cols + col;
+	}
+
+	public void add(int cell) {
+		pins[cell]++;
+	}
+
+	public void remove(int cell) {
+		pins[cell]--;
+	}
+
+	// True if the cell's pins are drawn as one.
+	public boolean dense(int cell) {
+		return pins[cell] >= dense;
+	}
+
+	// A pin in a dense cell, this frame.
+	public void gather(int cell, float x, float y, long pinBytes, int asn) {
+		if (members[cell] == 0) {
+			clusters[clusterCount++] = cell;
+			bytes[cell] = 0;
+			sumX[cell] = 0;
+			sumY[cell] = 0;
+			topAsn[cell] = asn;
+			topBytes[cell] = pinBytes;
+		}
+		members[cell]++;
+		bytes[cell] += pinBytes;
+		sumX[cell] += x;
+		sumY[cell] += y;
+		if (pinBytes > topBytes[cell]) {
+			topBytes[cell] = pinBytes;
+			topAsn[cell] = asn;
+		}
+	}
+
+	// This frame's clusters, for 0 <= i < clusters().
+	public int clusters() {
+		return clusterCount;
+	}
+
+	public float clusterX(int i) {
+		int c = clusters[i];
+		return sumX[c] / members[c];
+	}
+
+	public float clusterY(int i) {
+		int c = clusters[i];
+		return sumY[c] / members[c];
+	}
+
+	public long clusterBytes(int i) {
+		return bytes[clusters[i]];
+	}
+
+	public int clusterAsn(int i) {
+		return topAsn[clusters[i]];
+	}
+
+	public int clusterPins(int i) {
+		return members[clusters[i]];
+	}
+
+	// Forgets this frame's clusters, ready for the next.
+	public void clear() {
+		for (int i = 0; i < clusterCount; i++) {
+			members[clusters[i]] = 0;
+		}
+		clusterCount = 0;
+	}
+}
@@ -0,0 +1,560 @@
+package com.p2pbr.netviz;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+// NetViz's pins and what each frame does to them: packets applied to
+// the host they came from, new hosts placed once GeoIP knows where they
+// are, evicted or folded into per-ASN pins under a cap, counted for the
+// top lists, and walked each frame to be drawn and dropped once quiet.
+//
+// Nothing here needs Processing. Pins are drawn through a Canvas, which
+// NetViz points at its PinBatch or at ellipse(), so the same frame code
+// can be run and measured without a display (see FrameAllocations and
+// PacketBench).
+//
+// Owned by the draw thread. Set up in this order: capPins, trackTop and
+// cluster as wanted, then setMapArea, which places the reserved pins.
+class PinMap {
+	// Where a frame's pins go.
+	interface Canvas {
+		// A circle in ARGB colors, an alpha of 0 leaving that part out.
+		void pinEllipse(float x, float y, float d, int stroke, int fill);
+	}
+
+	// 10 frames after losing the last of its bytes, a pin vanishes
+	static final int DEAD_TIMER_CAP = 60;
+
+	// Bytes seen over the last second, and over the last windowSeconds.
+	final SlidingWindowCounter inNow = new SlidingWindowCounter(10, 100);
+	final SlidingWindowCounter inWindow;
+
+	final GeoResolver resolver;
+	final AddressClassifier classifier;
+
+	// Pins for remote hosts, keyed by IPv4 address.
+	final PinTable<Pin> pins;
+
+	// Where on the map each place GeoIP has given is, worked out once
+	// however many hosts are there.
+	final LocationTable locations = new LocationTable(1024);
+
+	Pin localPin, broadcastPin, loopbackPin, autoconfigPin;
+
+	// See capPins. asnPins is null unless folding.
+	int pinMax = 0;
+	int evictSample = 8;
+	boolean evictLight = false;
+	PinTable<Pin> asnPins;
+	long evicted = 0;
+	long folded = 0;
+
+	// Packets applied but not drawn: testnet and other reserved
+	// addresses, or new hosts with no room under pinMax.
+	long ignored = 0;
+
+	// Packets since the last frame, halved as they're drawn.
+	int newPackets = 0;
+
+	// The heaviest remote hosts and ASNs lately, see trackTop. Null
+	// otherwise.
+	TopTalkers topHosts;
+	TopTalkers topAsns;
+	double topHalfLife;
+	long lastDecay = -1;
+
+	// See cluster. Null when off.
+	PinGrid grid;
+	private float mapX;
+	private float mapY;
+
+	// Pins dropped from the map, kept for reuse by the next new hosts so
+	// a steady trickle of arrivals and departures allocates nothing.
+	private final ArrayList<Pin> sparePins = new ArrayList<Pin>();
+
+	private final Random random = new Random();
+
+	// The drain arrays, and the clock read once at the top of the frame.
+	private final long[] drainTimes;
+	private final int[] drainIps;
+	private final int[] drainLengths;
+	long now;
+
+	// Set for the length of draw().
+	private Canvas canvas;
+
+	PinMap(GeoResolver resolver, AddressClassifier classifier, int capacity, int drainCapacity,
+			double windowSeconds) {
+		this.resolver = resolver;
+		this.classifier = classifier;
+		this.pins = new PinTable<Pin>(capacity);
+		this.inWindow = new SlidingWindowCounter(100, (int) (windowSeconds * 10));
+		drainTimes = new long[drainCapacity];
+		drainIps = new int[drainCapacity];
+		drainLengths = new int[drainCapacity];
+	}
+
+	// Caps the pins on the map at max, so a scan or flood from thousands
+	// of addresses can't run the heap out. Past the cap each new host
+	// evicts a pin, the worst of sample picked at random by evict:
+	//   quiet - longest since its last bytes (the default)
+	//   light - fewest bytes in its window
+	//   asn   - as quiet, but the evicted pin's traffic carries on in one
+	//           pin per ASN, which new hosts from a known ASN also join
+	//           instead of evicting anything. The ASN pins count against
+	//           the cap too; once they fill it, hosts with no ASN pin of
+	//           their own are ignored
+	// so each new host costs a bounded amount however many turn up.
+	// A max of 0 leaves the pins uncapped.
+	void capPins(int max, String evict, int sample) {
+		pinMax = max;
+		evictSample = Math.max(sample, 1);
+		evictLight = evict.equalsIgnoreCase("light");
+		if (max > 0 && evict.equalsIgnoreCase("asn")) {
+			asnPins = new PinTable<Pin>(1024);
+		}
+	}
+
+	// Counts traffic by host and ASN in counters TopTalkers each, halving
+	// every halfLife seconds.
+	void trackTop(int counters, double halfLife) {
+		topHosts = new TopTalkers(counters);
+		topAsns = new TopTalkers(counters);
+		topHalfLife = halfLife;
+	}
+
+	// Counts pins in grid's cells, drawing crowded ones as one circle.
+	void cluster(PinGrid grid) {
+		this.grid = grid;
+	}
+
+	// The map's place on screen; (re)places the reserved pins below it.
+	void setMapArea(float x, float y, int width, int height) {
+		mapX = x;
+		mapY = y;
+		locations.project(x, y, width, height);
+		if (localPin == null) {
+			localPin = new Pin();
+			broadcastPin = new Pin();
+			loopbackPin = new Pin();
+			autoconfigPin = new Pin();
+		}
+		localPin.locate(-105, -160, 0);
+		broadcastPin.locate(-105, -120, 0);
+		loopbackPin.locate(-105, -80, 0);
+		autoconfigPin.locate(-105, -40, 0);
+	}
+
+	// Host pins and ASN pins, which pinMax caps together.
+	int pinCount() {
+		return pins.size() + (asnPins != null ? asnPins.size() : 0);
+	}
+
+	// The first half of a frame: drains ring and applies the whole
+	// batch, then decays the top lists. Returns the packets applied.
+	int applyPackets(PacketRing ring, long now, VizMetrics metrics) {
+		this.now = now;
+		int n = ring.drain(drainTimes, drainIps, drainLengths);
+		long bytes = 0;
+		for (int i = 0; i < n; i++) {
+			applyPacket(drainTimes[i], drainIps[i], drainLengths[i]);
+			bytes += drainLengths[i];
+		}
+		if (metrics != null) {
+			metrics.packets(n, bytes);
+		}
+		decayTopTalkers();
+		return n;
+	}
+
+	void applyPacket(long time, int ip, int bytes) {
+		switch (classifier.classify(ip)) {
+		case AddressClassifier.REMOTE:
+			Pin p = pins.get(ip);
+			if (p == null) {
+				GeoResolver.Geo geo = resolver.get(ip);
+				if (pinMax > 0 && pinCount() >= pinMax) {
+					if (asnPins != null && geo != null && geo.asn != 0) {
+						if (asnPins.get(geo.asn) == null && !makeRoom()) {
+							ignored++;
+							return;
+						}
+						int loc = locations.intern(geo.lat, geo.lon);
+						foldInto(geo.asn, locations.x(loc), locations.y(loc), bytes);
+						if (topHosts != null) {
+							topHosts.add(ip, bytes);
+							topAsns.add(geo.asn, bytes);
+						}
+						break;
+					}
+					if (!makeRoom()) {
+						ignored++;
+						return;
+					}
+				}
+				// placed once the resolver knows where it is, see draw
+				p = newPin();
+				if (geo != null) {
+					p.locate(geo.lat, geo.lon, geo.asn);
+				}
+				pins.put(ip, p);
+			}
+			p.addBytes(time, bytes);
+			if (topHosts != null) {
+				topHosts.add(ip, bytes);
+				if (p.asn != 0) {
+					topAsns.add(p.asn, bytes); // unknown until the pin is located
+				}
+			}
+			break;
+		case AddressClassifier.LOCAL:
+			localPin.addBytes(time, bytes);
+			break;
+		case AddressClassifier.BROADCAST:
+			broadcastPin.addBytes(time, bytes);
+			break;
+		case AddressClassifier.LOOPBACK:
+			loopbackPin.addBytes(time, bytes);
+			break;
+		case AddressClassifier.AUTOCONFIG:
+			autoconfigPin.addBytes(time, bytes);
+			break;
+		default: // testnet or other - shouldn't see these
+			ignored++;
+			return;
+		}
+		inWindow.add(time, bytes);
+		inNow.add(time, bytes);
+
+		newPackets++;
+	}
+
+	private void decayTopTalkers() {
+		if (topHosts == null) {
+			return;
+		}
+		if (lastDecay >= 0) {
+			double factor = Math.pow(0.5, (now - lastDecay) / (topHalfLife * 1000));
+			topHosts.decay(factor);
+			topAsns.decay(factor);
+		}
+		lastDecay = now;
+	}
+
+	// One line of a top list into r: the host or ASN and its rate. With
+	// counts decaying by half every topHalfLife seconds, a steady rate r
+	// settles at a count of r * topHalfLife / ln 2. The rate shown is what
+	// a key is sure to have sent, less the error from any counter it took
+	// over, as the list is ranked.
+	Readout topLine(Readout r, boolean asn, int key, double count, double error) {
+		double kbps = (count - error) * Math.log(2) / topHalfLife / 1024;
+		r.clear();
+		if (asn) {
+			r.append("AS").append(key);
+		} else {
+			r.appendAddress(key);
+		}
+		return r.append("  ").append(kbps, 1).append(" KB/s");
+	}
+
+	// The second half: every pin onto canvas, clusters for crowded cells,
+	// then the reserved pins. Pins gone quiet are dropped on the way.
+	void draw(Canvas canvas) {
+		this.canvas = canvas;
+		drawPins(pins);
+		if (asnPins != null) {
+			drawPins(asnPins);
+		}
+		if (grid != null) {
+			drawClusters();
+		}
+		localPin.drawSelf(true);
+		broadcastPin.drawSelf(true);
+		loopbackPin.drawSelf(true);
+		autoconfigPin.drawSelf(true);
+		this.canvas = null;
+	}
+
+	private void drawPins(PinTable<Pin> table) {
+		// walk backwards so removal doesn't skip any
+		for (int i = table.size() - 1; i >= 0; i--) {
+			Pin p = table.pinAt(i);
+			if (!p.located) {
+				GeoResolver.Geo geo = resolver.get(table.keyAt(i));
+				if (geo == null) {
+					continue; // still being looked up
+				}
+				p.locate(geo.lat, geo.lon, geo.asn);
+			}
+			boolean clustered = grid != null && p.cell >= 0 && grid.dense(p.cell);
+			boolean keep = p.drawSelf(!clustered);
+			if (!keep) {
+				removePin(table, i);
+			} else if (clustered) {
+				grid.gather(p.cell, p.x, p.y, p.bytes, p.asn);
+			}
+		}
+	}
+
+	// One circle per crowded cell, sized like a pin by the cell's bytes,
+	// with a faint fill to tell it from a single host.
+	private void drawClusters() {
+		for (int i = 0; i < grid.clusters(); i++) {
+			long bytes = grid.clusterBytes(i);
+			int rad = 8;
+			if (bytes > 0) {
+				rad = Math.max((int) Math.log(bytes) * 5, 8);
+			}
+			int asn = grid.clusterAsn(i);
+			int alpha = bytes > 0 ? 0xff : 0x55;
+			int stroke = PinBatch.argb(alpha, 0xff, (asn & 0xff00) >> 8, asn & 0xff);
+			int fill = PinBatch.argb(0x40, 0xff, (asn & 0xff00) >> 8, asn & 0xff);
+			canvas.pinEllipse(grid.clusterX(i), grid.clusterY(i), rad, stroke, fill);
+		}
+		grid.clear();
+	}
+
+	// Drops table.pinAt(i), and its place in the grid.
+	private void removePin(PinTable<Pin> table, int i) {
+		Pin p = table.pinAt(i);
+		if (grid != null && p.cell >= 0) {
+			grid.remove(p.cell);
+		}
+		table.removeAt(i);
+		sparePins.add(p);
+	}
+
+	// Evicts hosts until there's room for one more pin under pinMax;
+	// false if only ASN pins are left to take it. Evicting a host can
+	// make an ASN pin in its place, so this may take more than one.
+	boolean makeRoom() {
+		while (pinCount() >= pinMax) {
+			if (pins.size() == 0) {
+				return false;
+			}
+			evictPin();
+		}
+		return true;
+	}
+
+	// Drops one host, see capPins.
+	private void evictPin() {
+		int n = pins.size();
+		int victim = -1;
+		for (int k = 0; k < evictSample; k++) {
+			int i = random.nextInt(n);
+			if (victim < 0 || evictsBefore(pins.pinAt(i), pins.pinAt(victim))) {
+				victim = i;
+			}
+		}
+		Pin p = pins.pinAt(victim);
+		if (asnPins != null && p.located && p.asn != 0) {
+			foldInto(p.asn, p.x, p.y, (int) p.window.total(now));
+			folded++;
+		}
+		removePin(pins, victim);
+		evicted++;
+	}
+
+	private boolean evictsBefore(Pin a, Pin b) {
+		if (evictLight) {
+			return a.window.total(now) < b.window.total(now);
+		}
+		return a.lastBytes < b.lastBytes;
+	}
+
+	// Adds bytes to asn's pin, placed at (x, y) if it's new.
+	private void foldInto(int asn, float x, float y, int bytes) {
+		Pin agg = asnPins.get(asn);
+		if (agg == null) {
+			agg = newPin();
+			agg.place(x, y, asn);
+			asnPins.put(asn, agg);
+		}
+		agg.addBytes(now, bytes);
+	}
+
+	// A fresh pin, reused if one's spare.
+	Pin newPin() {
+		int n = sparePins.size();
+		if (n == 0) {
+			return new Pin();
+		}
+		Pin p = sparePins.remove(n - 1);
+		p.reset();
+		return p;
+	}
+
+	// Adds step made up pins keyed from base + added, within the cap,
+	// and feeds all of them; see NetViz's netviz.stress. Returns how many
+	// there are now.
+	int stress(int base, int added, int target, int step) {
+		for (int i = 0; i < step && added < target; i++, added++) {
+			if (pinMax > 0 && !makeRoom()) {
+				break;
+			}
+			Pin p = newPin();
+			p.locate(random.nextFloat() * 135 - 60, random.nextFloat() * 360 - 180, random.nextInt(0x10000));
+			pins.put(base + added, p);
+		}
+		for (int i = 0; i < added; i++) {
+			Pin p = pins.get(base + i);
+			if (p != null) {
+				p.addBytes(now, 100 + random.nextInt(99900));
+			}
+		}
+		return added;
+	}
+
+	class Pin {
+		public int state;
+		public int animation;
+
+		private final int STATE_STATIC = 0;
+		private final int STATE_ANIMATE = 1;
+
+		private final int ANIMATION_MAX = 20;
+		private final int ANIMATION_RADIUS = 400;
+
+		private final int PULSE_MAX = 5;
+
+		private int pulse = -1 * PULSE_MAX;
+
+		public float x;
+		public float y;
+		public int asn;
+		// false until the resolver has placed this pin; it isn't drawn before then
+		public boolean located = false;
+		// its cell in grid, -1 if none
+		int cell = -1;
+
+		// bytes seen from this host over the last second
+		public int bytes = 0;
+		private SlidingWindowCounter window = new SlidingWindowCounter(100, 10);
+
+		private int deadTimer = 1;
+		// when bytes last arrived, for eviction
+		long lastBytes = 0;
+		private boolean pulseUp = true;
+
+		// A pin whose location isn't known yet.
+		public Pin() {
+			reset();
+		}
+
+		// Back to a new, unplaced pin, for reuse from sparePins.
+		public void reset() {
+			this.state = STATE_ANIMATE;
+			this.animation = 1;
+			this.pulse = -1 * PULSE_MAX;
+			this.pulseUp = true;
+			this.deadTimer = 1;
+			this.lastBytes = 0;
+			this.bytes = 0;
+			this.window.clear();
+			this.x = 0;
+			this.y = 0;
+			this.asn = 0;
+			this.located = false;
+			this.cell = -1;
+		}
+
+		public void locate(float lat, float lon, int asn) {
+			int loc = locations.intern(lat, lon);
+			place(locations.x(loc), locations.y(loc), asn);
+		}
+
+		public void place(float x, float y, int asn) {
+			this.x = x;
+			this.y = y;
+			this.asn = asn;
+			this.located = true;
+			if (grid != null) {
+				if (cell >= 0) {
+					grid.remove(cell);
+				}
+				cell = grid.cell(x - mapX, y - mapY);
+				if (cell >= 0) {
+					grid.add(cell);
+				}
+			}
+		}
+
+		private int pulseStep() {
+			if (pulseUp) {
+				pulse++;
+			} else {
+				pulse--;
+			}
+			if (pulse >= PULSE_MAX) {
+				pulseUp = false;
+			}
+			if (pulse <= PULSE_MAX * -1) {
+				pulseUp = true;
+			}
+			return pulse;
+		}
+
+		// Updates the pin for this frame, drawing it if visible; a pin in a
+		// cluster keeps its state without being drawn. False once it's dead.
+		public boolean drawSelf(boolean visible) {
+			bytes = (int) window.total(now);
+			int rad = 8;
+			if (bytes > 0) {
+				rad = (int) Math.log(bytes) * 5;
+			}
+			if (rad < 8) {
+				rad = 8;
+			}
+			rad += this.pulseStep();
+
+			if (state == STATE_STATIC) {
+				if (bytes > 0) {
+					if (visible) {
+						canvas.pinEllipse(this.x, this.y, rad, outline(0xff), 0);
+					}
+					return true;
+				} else if (deadTimer <= DEAD_TIMER_CAP) {
+					if (visible) {
+						// no bytes left in window - display as transparent
+						canvas.pinEllipse(this.x, this.y, rad, outline(0xaa / deadTimer), 0);
+					}
+					deadTimer++;
+					return true;
+				} else {
+					return false;
+				}
+			} else if (state == STATE_ANIMATE) {
+				// circle starts large, gets small
+				// starts fully opaque, becomes transparent
+				if (visible) {
+					canvas.pinEllipse(this.x, this.y, ANIMATION_RADIUS / this.animation, outline(0xff), 0);
+
+					// circle starts small, gets to target size
+					// starts transparent, becomes opaque
+					canvas.pinEllipse(this.x, this.y, rad - (rad / this.animation), outline(0xff), 0);
+				}
+
+				this.animation++;
+				if (this.animation >= ANIMATION_MAX) {
+					this.state = STATE_STATIC;
+				}
+				return true;
+			}
+			return false;
+		}
+
+		// this pin's outline color at the given alpha
+		private int outline(int alpha) {
+			return PinBatch.argb(alpha, 0xff, (this.asn & 0xff00) >> 8, this.asn & 0xff);
+		}
+
+		public void addBytes(long time, int bytes) {
+			window.add(time, bytes);
+			if (bytes > 0) {
+				deadTimer = 1;
+				lastBytes = time;
+			}
+		}
+	}
+}
@@ -0,0 +1,198 @@
+package com.p2pbr.netviz;
+
+// Pins kept column-wise: one primitive array per field rather than one
+// object per pin. A row is 21 bytes, where a Pin object with its
+// TimeStamp and list node came to 112 (see PinHeap in bench/, and the
+// figures in the readme). Positions are ids
+// into a LocationTable shared by every store of a map, so a place many
+// pins share is held, and projected, once. (Stores being loaded have a
+// table of their own until they're merged, see copyRow.)
+//
+// Unreached pins point at a row in a second store holding the last
+// address they were known at, so rows of the main store are always
+// measurements of their own.
+class PinStore {
+	static final byte CONSOLIDATED = 1;
+
+	// Bytes of column data per row: loc, color, time, lastKnown, flags.
+	static final int ROW_BYTES = 4 + 4 + 8 + 4 + 1;
+
+	final LocationTable locations;
+	int[] loc;        // id in locations
+	int[] color;      // 0xffRRGGBB
+	long[] time;      // epoch seconds, see VizTime
+	int[] lastKnown;  // row in lastKnownStore, or -1
+	byte[] flags;
+	int size = 0;
+
+	private PinStore lastKnownStore = null;
+
+	public PinStore(int capacity, LocationTable locations) {
+		this.locations = locations;
+		capacity = Math.max(capacity, 16);
+		loc = new int[capacity];
+		color = new int[capacity];
+		time = new long[capacity];
+		lastKnown = new int[capacity];
+		flags = new byte[capacity];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public float x(int i) {
+		return locations.x(loc[i]);
+	}
+
+	public float y(int i) {
+		return locations.y(loc[i]);
+	}
+
+	// Appends a row and returns its index.
+	public int add(int location, int rgb, long t, byte f) {
+		if (size == loc.length) {
+			grow();
+		}
+		int i = size++;
+		loc[i] = location;
+		color[i] = rgb;
+		time[i] = t;
+		lastKnown[i] = -1;
+		flags[i] = f;
+		return i;
+	}
+
+	// Gives row i a last known location.
+	public void setLastKnown(int i, int location, int rgb) {
+		if (lastKnownStore == null) {
+			lastKnownStore = new PinStore(16, locations);
+		}
+		lastKnown[i] = lastKnownStore.add(location, rgb, time[i], (byte) 0);
+	}
+
+	// The store lastKnown[] rows point into. Null if there are none.
+	public PinStore lastKnownStore() {
+		return lastKnownStore;
+	}
+
+	// Appends a copy of row i of from, last known location and all.
+	public int copyRow(PinStore from, int i) {
+		return copyRow(from, i, null);
+	}
+
+	// The same for a from with a LocationTable of its own: ids maps its
+	// location ids onto this store's, as LocationTable.mergeInto returns.
+	public int copyRow(PinStore from, int i, int[] ids) {
+		int row = add(ids == null ? from.loc[i] : ids[from.loc[i]], from.color[i], from.time[i], from.flags[i]);
+		int lk = from.lastKnown[i];
+		if (lk >= 0) {
+			PinStore l = from.lastKnownStore;
+			setLastKnown(row, ids == null ? l.loc[lk] : ids[l.loc[lk]], l.color[lk]);
+		}
+		return row;
+	}
+
+	// A copy with the rows in time order. Rows with equal times keep
+	// their order.
+	public PinStore sortedByTime() {
+		int[] order = orderBy(time, size);
+		PinStore sorted = new PinStore(size, locations);
+		for (int i = 0; i < size; i++) {
+			sorted.copyRow(this, order[i]);
+		}
+		return sorted;
+	}
+
+	// Indices 0 to n - 1, stably sorted by keys.
+	static int[] orderBy(long[] keys, int n) {
+		int[] order = new int[n];
+		for (int i = 0; i < n; i++) {
+			order[i] = i;
+		}
+		mergeSort(keys, order, new int[n], 0, n);
+		return order;
+	}
+
+	private static void mergeSort(long[] keys, int[] a, int[] tmp, int from, int to) {
+		if (to - from < 2) {
+			return;
+		}
+		int mid = (from + to) >>> 1;
+		mergeSort(keys, a, tmp, from, mid);
+		mergeSort(keys, a, tmp, mid, to);
+		if (keys[a[mid - 1]] <= keys[a[mid]]) {
+			return; // already in order, the usual case for .viz files
+		}
+		System.arraycopy(a, from, tmp, from, to - from);
+		int i = from, j = mid, k = from;
+		while (i < mid && j < to) {
+			a[k++] = keys[tmp[j]] < keys[tmp[i]] ? tmp[j++] : tmp[i++];
+		}
+		while (i < mid) {
+			a[k++] = tmp[i++];
+		}
+		while (j < to) {
+			a[k++] = tmp[j++];
+		}
+	}
+
+	// Heap held by the columns and the locations, spare capacity included.
+	public long bytes() {
+		return columnBytes() + locations.bytes();
+	}
+
+	private long columnBytes() {
+		long b = (long) loc.length * ROW_BYTES;
+		if (lastKnownStore != null) {
+			b += lastKnownStore.columnBytes();
+		}
+		return b;
+	}
+
+	public double bytesPerPin() {
+		return size == 0 ? 0 : (double) bytes() / size;
+	}
+
+	// Trims spare capacity once loading is done.
+	public void trim() {
+		resize(size);
+		if (lastKnownStore != null) {
+			lastKnownStore.trim();
+		}
+	}
+
+	private void grow() {
+		resize(loc.length + (loc.length >> 1) + 1);
+	}
+
+	private void resize(int capacity) {
+		int[] nloc = new int[capacity];
+		int[] nc = new int[capacity];
+		long[] nt = new long[capacity];
+		int[] nl = new int[capacity];
+		byte[] nf = new byte[capacity];
+		System.arraycopy(loc, 0, nloc, 0, size);
+		System.arraycopy(color, 0, nc, 0, size);
+		System.arraycopy(time, 0, nt, 0, size);
+		System.arraycopy(lastKnown, 0, nl, 0, size);
+		System.arraycopy(flags, 0, nf, 0, size);
+		loc = nloc;
+		color = nc;
+		time = nt;
+		lastKnown = nl;
+		flags = nf;
+	}
+
+	// Packs an opaque color, clamping each channel the way fill() would.
+	static int rgb(int r, int g, int b) {
+		return 0xff000000 | (clamp(r) << 16) | (clamp(g) << 8) | clamp(b);
+	}
+
+	static int red(int c)   { return (c >> 16) & 0xff; }
+	static int green(int c) { return (c >> 8) & 0xff; }
+
+	private static int clamp(int v) {
+		return v < 0 ? 0 : (v > 255 ? 255 : v);
+	}
+}
@@ -0,0 +1,159 @@
+package com.p2pbr.netviz;
+
+// Pins keyed by IPv4 address held as an int.
+//
+// The pins themselves live in a dense array, so the draw loop can walk
+// them by index and drop dead ones as it goes. Alongside it is an
+// open-addressing (linear probing) table from address to dense index.
+// Nothing is boxed and no key strings are built, so lookups on the
+// packet path don't allocate.
+//
+// Not thread safe; owned by the draw thread.
+class PinTable<P> {
+	// Hash table. slots[] holds dense index + 1, 0 marks an empty slot.
+	private int[] keys;
+	private int[] slots;
+	private int mask;
+
+	// Dense storage.
+	private Object[] pins;
+	private int[] pinKeys;
+	private int size = 0;
+
+	// expected: how many pins to size for before the first resize.
+	public PinTable(int expected) {
+		if (expected < 4) {
+			expected = 4;
+		}
+		int cap = 1;
+		while (cap < expected * 2) {
+			cap <<= 1;
+		}
+		keys = new int[cap];
+		slots = new int[cap];
+		mask = cap - 1;
+		pins = new Object[expected];
+		pinKeys = new int[expected];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	@SuppressWarnings("unchecked")
+	public P get(int key) {
+		int s = find(key);
+		return s < 0 ? null : (P) pins[slots[s] - 1];
+	}
+
+	// Adds a pin, or replaces the one already stored under key.
+	public void put(int key, P pin) {
+		int s = find(key);
+		if (s >= 0) {
+			pins[slots[s] - 1] = pin;
+			return;
+		}
+		if ((size + 1) * 2 > keys.length) {
+			rehash(keys.length * 2);
+		}
+		if (size == pins.length) {
+			Object[] grownPins = new Object[pins.length * 2];
+			int[] grownKeys = new int[pins.length * 2];
+			System.arraycopy(pins, 0, grownPins, 0, size);
+			System.arraycopy(pinKeys, 0, grownKeys, 0, size);
+			pins = grownPins;
+			pinKeys = grownKeys;
+		}
+		pins[size] = pin;
+		pinKeys[size] = key;
+		size++;
+		insert(key, size);
+	}
+
+	// Dense access, for 0 <= i < size().
+	@SuppressWarnings("unchecked")
+	public P pinAt(int i) {
+		return (P) pins[i];
+	}
+
+	public int keyAt(int i) {
+		return pinKeys[i];
+	}
+
+	// Removes the pin at dense index i. The last pin is moved into its
+	// place, so walk from size() - 1 down to 0 when removing mid-iteration.
+	public void removeAt(int i) {
+		deleteSlot(find(pinKeys[i]));
+		int last = size - 1;
+		if (i != last) {
+			pins[i] = pins[last];
+			pinKeys[i] = pinKeys[last];
+			slots[find(pinKeys[i])] = i + 1;
+		}
+		pins[last] = null;
+		size--;
+	}
+
+	public P remove(int key) {
+		int s = find(key);
+		if (s < 0) {
+			return null;
+		}
+		P pin = pinAt(slots[s] - 1);
+		removeAt(slots[s] - 1);
+		return pin;
+	}
+
+	// Spreads sequential addresses (a /24 scan) across the table.
+	private int home(int key) {
+		int h = key * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	// Slot holding key, or -1.
+	private int find(int key) {
+		for (int s = home(key); slots[s] != 0; s = (s + 1) & mask) {
+			if (keys[s] == key) {
+				return s;
+			}
+		}
+		return -1;
+	}
+
+	private void insert(int key, int value) {
+		int s = home(key);
+		while (slots[s] != 0) {
+			s = (s + 1) & mask;
+		}
+		keys[s] = key;
+		slots[s] = value;
+	}
+
+	// Backward-shift deletion: pull later entries of the probe run into
+	// the hole so lookups never need tombstones.
+	private void deleteSlot(int hole) {
+		slots[hole] = 0;
+		for (int s = (hole + 1) & mask; slots[s] != 0; s = (s + 1) & mask) {
+			int h = home(keys[s]);
+			if (((s - h) & mask) >= ((s - hole) & mask)) {
+				keys[hole] = keys[s];
+				slots[hole] = slots[s];
+				slots[s] = 0;
+				hole = s;
+			}
+		}
+	}
+
+	private void rehash(int cap) {
+		int[] oldKeys = keys;
+		int[] oldSlots = slots;
+		keys = new int[cap];
+		slots = new int[cap];
+		mask = cap - 1;
+		for (int s = 0; s < oldKeys.length; s++) {
+			if (oldSlots[s] != 0) {
+				insert(oldKeys[s], oldSlots[s]);
+			}
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package com.p2pbr.netviz;
+
+// A line of text for readouts redrawn every frame, built in place: the
+// numbers are written straight into a reused char buffer instead of
+// through string concatenation or nf(), so a frame's readouts allocate
+// nothing. Draw it with PApplet.text(chars(), 0, length(), x, y).
+class Readout {
+	private char[] chars = new char[64];
+	private int length = 0;
+
+	public Readout clear() {
+		length = 0;
+		return this;
+	}
+
+	public char[] chars() {
+		return chars;
+	}
+
+	public int length() {
+		return length;
+	}
+
+	public Readout append(String s) {
+		int n = s.length();
+		ensure(n);
+		s.getChars(0, n, chars, length);
+		length += n;
+		return this;
+	}
+
+	public Readout append(char c) {
+		ensure(1);
+		chars[length++] = c;
+		return this;
+	}
+
+	public Readout append(long v) {
+		if (v < 0) {
+			if (v == Long.MIN_VALUE) {
+				return append("-9223372036854775808");
+			}
+			append('-');
+			v = -v;
+		}
+		int digits = 1;
+		for (long t = v; t >= 10; t /= 10) {
+			digits++;
+		}
+		ensure(digits);
+		for (int i = length + digits - 1; i >= length; i--) {
+			chars[i] = (char) ('0' + v % 10);
+			v /= 10;
+		}
+		length += digits;
+		return this;
+	}
+
+	// v with the given number of decimals, rounded, as nf(v, 0, decimals).
+	public Readout append(double v, int decimals) {
+		long scale = 1;
+		for (int i = 0; i < decimals; i++) {
+			scale *= 10;
+		}
+		long fixed = Math.round(Math.abs(v) * scale);
+		if (v < 0 && fixed != 0) {
+			append('-');
+		}
+		append(fixed / scale);
+		if (decimals > 0) {
+			append('.');
+			long fraction = fixed % scale;
+			for (long s = scale / 10; s > 0; s /= 10) {
+				append((char) ('0' + fraction / s % 10));
+			}
+		}
+		return this;
+	}
+
+	// An IPv4 address held as an int, as IPv4.toString would write it.
+	public Readout appendAddress(int ip) {
+		for (int i = 1; i <= 4; i++) {
+			if (i > 1) {
+				append('.');
+			}
+			append(IPv4.octet(ip, i));
+		}
+		return this;
+	}
+
+	private void ensure(int more) {
+		if (length + more > chars.length) {
+			char[] grown = new char[Math.max(chars.length * 2, length + more)];
+			System.arraycopy(chars, 0, grown, 0, length);
+			chars = grown;
+		}
+	}
+}
@@ -9,6 +9,17 @@ public class Runner {
 			System.out.println("If you are running from ant, use -Dtarget=<name>");
 			return;
 		}
+		// No window and no capture, so no pcap library either.
+		if (args[0].compareToIgnoreCase("TorRender") == 0 || args[0].compareToIgnoreCase("TorRenderer") == 0) {
+			String[] rest = new String[args.length - 1];
+			System.arraycopy(args, 1, rest, 0, rest.length);
+			TorRenderer.main(rest);
+			return;
+		}
+		if (args[0].compareToIgnoreCase("VizCache") == 0) {
+			VizCache.main(new String[0]);
+			return;
+		}
 	    System.loadLibrary("jpcap");
 /*	 Compiler was unhappy with this code:
  * java.lang.RuntimeException: java.lang.ClassNotFoundException: com.p2pbr.netviz.Net${target}
@@ -19,6 +30,10 @@ public class Runner {
 */
 		if (args[0].compareToIgnoreCase("TorNetViz") == 0) {
 			PApplet.main(new String[] { "--present", "com.p2pbr.netviz.TorNetViz" });
+		} else if (args[0].compareToIgnoreCase("Viz") == 0 || args[0].compareToIgnoreCase("NetViz") == 0) {
+			PApplet.main(new String[] { "--present", "com.p2pbr.netviz.NetViz" });
+		} else if (args[0].compareToIgnoreCase("Meter") == 0 || args[0].compareToIgnoreCase("NetMeter") == 0) {
+			PApplet.main(new String[] { "--present", "com.p2pbr.netviz.NetMeter" });
 		}
 /*	Compiler was also unhappy with this code:
  * java.lang.RuntimeException: java.lang.ClassNotFoundException: com.p2pbr.netviz.${target}
@@ -0,0 +1,83 @@
+package com.p2pbr.netviz;
+
+import java.util.Arrays;
+
+// A running total over a sliding time window, kept in fixed-width time
+// slots arranged as a ring. Adding and querying only ever clear the slots
+// that have fallen out of the window since the last call, so the cost
+// doesn't depend on how many packets went into it.
+//
+// Not thread safe; each instance belongs to a single thread.
+class SlidingWindowCounter {
+	private final long slotMillis;
+	private final long[] slots;
+	private long total = 0;
+
+	// Absolute index (time / slotMillis) of the newest slot in the ring.
+	private long headSlot = 0;
+
+	public SlidingWindowCounter(long slotMillis, int slotCount) {
+		this.slotMillis = slotMillis;
+		this.slots = new long[slotCount];
+	}
+
+	// Adds an amount at the given time. Times older than the window are
+	// ignored, times a little in the past land in their own slot.
+	public void add(long time, long amount) {
+		advance(time);
+		long slot = time / slotMillis;
+		if (headSlot - slot >= slots.length) {
+			return;
+		}
+		slots[(int) (slot % slots.length)] += amount;
+		total += amount;
+	}
+
+	// Sum of everything added within the window ending at now.
+	public long total(long now) {
+		advance(now);
+		return total;
+	}
+
+	// Milliseconds from the start of the oldest non-empty slot up to now,
+	// or 0 if the window is empty.
+	public long span(long now) {
+		advance(now);
+		if (total == 0) {
+			return 0;
+		}
+		for (long s = headSlot - slots.length + 1; s <= headSlot; s++) {
+			if (slots[(int) (s % slots.length)] != 0) {
+				return now - s * slotMillis;
+			}
+		}
+		return 0;
+	}
+
+	public long windowMillis() {
+		return slotMillis * slots.length;
+	}
+
+	public void clear() {
+		Arrays.fill(slots, 0);
+		total = 0;
+	}
+
+	// Drops every slot that has slid out of the window by now.
+	private void advance(long now) {
+		long slot = now / slotMillis;
+		if (slot <= headSlot) {
+			return;
+		}
+		if (slot - headSlot >= slots.length) {
+			clear();
+		} else {
+			for (long s = headSlot + 1; s <= slot; s++) {
+				int i = (int) (s % slots.length);
+				total -= slots[i];
+				slots[i] = 0;
+			}
+		}
+		headSlot = slot;
+	}
+}
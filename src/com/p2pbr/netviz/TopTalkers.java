@@ -0,0 +1,209 @@
+package com.p2pbr.netviz;
+
+// The heaviest keys (addresses, AS numbers) in a stream of (key, bytes),
+// in fixed memory however many distinct keys turn up. This is the
+// Space-Saving algorithm: capacity counters are kept, and a key without
+// one takes over the smallest, inheriting its count. A key can then be
+// overcounted by at most what it inherited, and any key with more than
+// 1/capacity of the traffic is sure to hold a counter.
+//
+// Counts decay, so the top keys follow the last few half-lives of
+// traffic rather than all time. Decay scales every count alike, so the
+// order holds without re-sorting.
+//
+// The counters sit in a min-heap on count, next to an open-addressing
+// table from key to counter like PinTable's. Nothing allocates after
+// construction. Not thread safe; owned by the draw thread.
+class TopTalkers {
+	private final int capacity;
+
+	// Counters, by index.
+	private final int[] keys;
+	private final double[] counts;
+	private final double[] errors; // count inherited on takeover
+	private int size = 0;
+
+	// Min-heap of counter indices, and each counter's place in it.
+	private final int[] heap;
+	private final int[] heapAt;
+
+	// key -> counter index + 1, 0 marks an empty slot.
+	private final int[] tableKeys;
+	private final int[] tableSlots;
+	private final int mask;
+
+	public TopTalkers(int capacity) {
+		this.capacity = Math.max(capacity, 1);
+		keys = new int[this.capacity];
+		counts = new double[this.capacity];
+		errors = new double[this.capacity];
+		heap = new int[this.capacity];
+		heapAt = new int[this.capacity];
+		int cap = 1;
+		while (cap < this.capacity * 2) {
+			cap <<= 1;
+		}
+		tableKeys = new int[cap];
+		tableSlots = new int[cap];
+		mask = cap - 1;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+
+	public void add(int key, long amount) {
+		int s = find(key);
+		int c;
+		if (s >= 0) {
+			c = tableSlots[s] - 1;
+			counts[c] += amount;
+		} else if (size < capacity) {
+			c = size++;
+			keys[c] = key;
+			counts[c] = amount;
+			errors[c] = 0;
+			heap[c] = c;
+			heapAt[c] = c;
+			insert(key, c + 1);
+			siftUp(c);
+			return;
+		} else {
+			// take over the smallest counter
+			c = heap[0];
+			deleteSlot(find(keys[c]));
+			errors[c] = counts[c];
+			counts[c] += amount;
+			keys[c] = key;
+			insert(key, c + 1);
+		}
+		siftDown(heapAt[c]);
+	}
+
+	// Scales every count by factor, e.g. 0.5 once a half-life.
+	public void decay(double factor) {
+		for (int c = 0; c < size; c++) {
+			counts[c] *= factor;
+			errors[c] *= factor;
+		}
+	}
+
+	// The n keys with the most traffic they're sure to have had (count
+	// less error), most first, into outKeys and outCounts (and outErrors,
+	// if not null). Ranking by the raw count would fill the list with
+	// keys that only just took over a big counter. Returns how many there
+	// were.
+	public int top(int n, int[] outKeys, double[] outCounts, double[] outErrors) {
+		n = Math.min(n, size);
+		for (int i = 0; i < n; i++) {
+			// n is a screenful, so picking each in turn is cheap enough
+			int best = -1;
+			for (int c = 0; c < size; c++) {
+				if ((best < 0 || counts[c] - errors[c] > counts[best] - errors[best]) && !taken(c, outKeys, i)) {
+					best = c;
+				}
+			}
+			outKeys[i] = keys[best];
+			outCounts[i] = counts[best];
+			if (outErrors != null) {
+				outErrors[i] = errors[best];
+			}
+		}
+		return n;
+	}
+
+	private boolean taken(int c, int[] picked, int n) {
+		for (int i = 0; i < n; i++) {
+			if (picked[i] == keys[c]) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public void clear() {
+		for (int s = 0; s < tableSlots.length; s++) {
+			tableSlots[s] = 0;
+		}
+		size = 0;
+	}
+
+	private void siftUp(int i) {
+		int c = heap[i];
+		while (i > 0) {
+			int parent = (i - 1) >> 1;
+			if (counts[heap[parent]] <= counts[c]) {
+				break;
+			}
+			place(i, heap[parent]);
+			i = parent;
+		}
+		place(i, c);
+	}
+
+	private void siftDown(int i) {
+		int c = heap[i];
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= size) {
+				break;
+			}
+			if (child + 1 < size && counts[heap[child + 1]] < counts[heap[child]]) {
+				child++;
+			}
+			if (counts[c] <= counts[heap[child]]) {
+				break;
+			}
+			place(i, heap[child]);
+			i = child;
+		}
+		place(i, c);
+	}
+
+	private void place(int i, int c) {
+		heap[i] = c;
+		heapAt[c] = i;
+	}
+
+	// The table below is PinTable's, minus growing.
+
+	private int home(int key) {
+		int h = key * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	private int find(int key) {
+		for (int s = home(key); tableSlots[s] != 0; s = (s + 1) & mask) {
+			if (tableKeys[s] == key) {
+				return s;
+			}
+		}
+		return -1;
+	}
+
+	private void insert(int key, int value) {
+		int s = home(key);
+		while (tableSlots[s] != 0) {
+			s = (s + 1) & mask;
+		}
+		tableKeys[s] = key;
+		tableSlots[s] = value;
+	}
+
+	private void deleteSlot(int hole) {
+		tableSlots[hole] = 0;
+		for (int s = (hole + 1) & mask; tableSlots[s] != 0; s = (s + 1) & mask) {
+			int h = home(tableKeys[s]);
+			if (((s - h) & mask) >= ((s - hole) & mask)) {
+				tableKeys[hole] = tableKeys[s];
+				tableSlots[hole] = tableSlots[s];
+				tableSlots[s] = 0;
+				hole = s;
+			}
+		}
+	}
+}
@@ -0,0 +1,499 @@
+package com.p2pbr.netviz;
+
+import com.maxmind.geoip.*;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+// Everything TorNetViz knows about turning .viz files into pins, apart
+// from Processing, so TorRenderer can draw the same maps with no display.
+// One TorMap covers one set of TorArgs.ini arguments.
+class TorMap {
+	
+	// Constants for drawing.
+	static final int DOT_RADIUS = 2;
+	static final int CONSOLIDATED_DOT_RADIUS = 4;
+	private static final int LAST_KNOWN_COLOR = PinStore.rgb(0xff, 0xff, 0x00);
+	
+	// Consolidation grid. Pins whose positions fall in the same
+	// CELL_SIZE pixel square merge into one; 0 merges only identical
+	// positions. With CELL_MINUTES set, each cell also splits by time.
+	private final float CELL_SIZE = Float.parseFloat(System.getProperty("netviz.tor.cell", "0"));
+	private final int CELL_MINUTES = Integer.getInteger("netviz.tor.cellMinutes", 0);
+	
+	// Threads parsing and geolocating .viz files when loading up front.
+	int workers = Integer.getInteger("netviz.tor.workers", Runtime.getRuntime().availableProcessors());
+	
+	// psuedo-arguments, from TorArgs.ini
+	final String DIRPATH;
+	final String PACKET_MODE;
+	final String STARTING_INPUT_STRING;
+	final String ENDING_INPUT_STRING;
+	final int ONE_DAY_IN_SECS;
+	final int MAX_RESPONSE; // in ms
+	final int WEB_MAX_RESPONSE; // in sec
+	
+	// The map pins are placed on, see SetMapArea.
+	private int mapX;
+	private int mapY;
+	private int mapWidth;
+	private int mapHeight;
+	
+	// Every place this map's pins are at, projected onto it.
+	final LocationTable locations = new LocationTable(1 << 12);
+	
+	// Hookup to the MaxMind database. Only the city one is needed here,
+	// so dbConnected doesn't wait on GeoIPASNum.dat.
+	GeoDatabase geoLookup;
+	boolean dbConnected = false;
+	
+	TorMap(String dirPath, String packetMode, String start, String end,
+			int oneDayInSecs, int maxResponse, int webMaxResponse) {
+		DIRPATH = dirPath;
+		PACKET_MODE = packetMode;
+		STARTING_INPUT_STRING = start;
+		ENDING_INPUT_STRING = end;
+		ONE_DAY_IN_SECS = oneDayInSecs;
+		MAX_RESPONSE = maxResponse;
+		WEB_MAX_RESPONSE = webMaxResponse;
+		
+		// connect to the database of geolocation data
+		geoLookup = GeoDatabase.instance();
+		dbConnected = geoLookup.hasCity();
+	}
+	
+	// Reads TorArgs.ini style arguments, one per line. Must be properly
+	// formatted, see IniArgsInfo.txt.
+	static TorMap FromArgs(File file) throws FileNotFoundException {
+
+		// Setup the scanner on the file.
+		Scanner theArgs = new Scanner(file);
+		try {
+			String dirPath = theArgs.nextLine(); // first line
+			String packetMode = theArgs.nextLine(); // second line
+			String start = theArgs.nextLine(); // third line
+			String end = theArgs.nextLine(); // fourth line
+			int oneDay = theArgs.nextInt(); // fifth line
+			int maxResponse = theArgs.nextInt(); // sixth line
+			int webMaxResponse = theArgs.nextInt(); // seventh line
+			return new TorMap(dirPath, packetMode, start, end, oneDay, maxResponse, webMaxResponse);
+		} finally {
+			theArgs.close();
+		}
+	}
+	
+	// The same arguments over another stretch of time.
+	TorMap WithRange(String start, String end) {
+		TorMap other = new TorMap(DIRPATH, PACKET_MODE, start, end, ONE_DAY_IN_SECS, MAX_RESPONSE, WEB_MAX_RESPONSE);
+		other.SetMapArea(mapX, mapY, mapWidth, mapHeight);
+		other.workers = workers;
+		return other;
+	}
+	
+	// Where the map is drawn; pin positions are worked out against it.
+	void SetMapArea(int x, int y, int width, int height) {
+		mapX = x;
+		mapY = y;
+		mapWidth = width;
+		mapHeight = height;
+		locations.project(x, y, width, height);
+	}
+	
+	// The simulated clock: it starts at STARTING_INPUT_STRING, and each
+	// frame moves it on by SecondsPerTick. Both are epoch seconds.
+	long ClockStart() {
+		return VizTime.parse(STARTING_INPUT_STRING);
+	}
+	
+	// Clock seconds per frame at framerate, so a day of data takes about
+	// ONE_DAY_IN_SECS seconds to play. Past 144 seconds a day at 10 fps
+	// that's under a minute a frame.
+	long SecondsPerTick(int framerate) {
+			// [data time] 		(86400 secs / day) divided by
+			// [animation time] (framerate frames/second * INPUT seconds / day)
+		return Math.max(1, 86400 / (framerate * ONE_DAY_IN_SECS));
+	}
+	
+	// All .viz files are in a single location, labelled by timestamp.
+	// Returns the ones between the starting and ending arguments.
+	File[] ListVizFiles() {
+		
+		// Open the directory.
+		File measures = new File(DIRPATH);
+		
+		// This filter returns the directories that are equal to or
+		// after the command line arg starting timestamp.
+		FileFilter filter = new FileFilter() {
+			public boolean accept(File file) {
+				return file.getName().compareTo(STARTING_INPUT_STRING) >= 0 &&
+					   file.getName().compareTo(ENDING_INPUT_STRING) <= 0;
+			}
+		};
+		
+		// In name order, which listFiles doesn't promise, so equal
+		// timestamps always come out the same way.
+		File[] files = measures.listFiles(filter);
+		if (files != null) {
+			Arrays.sort(files);
+		}
+		return files;
+	}
+	
+	// Make pins from each line of the input files, or from the cache.
+	// Files are loaded in parallel on workers threads, each into its own
+	// sorted run, and the runs merged in file order. The result is the
+	// same time order a single thread would produce.
+	PinStore CreatePins(final PhaseTimer timer) throws FileNotFoundException {
+		
+		// A VizCache made from this directory skips parsing and
+		// geolocating altogether, as long as it's up to date.
+		VizCache cache = VizCache.open(this);
+		if (cache != null) {
+			try {
+				return cache.load(this, timer);
+			} catch (IOException e) {
+				System.err.println("[TorMap] can't load the cache, parsing instead: " + e);
+			}
+		}
+		
+		// Find the files.
+		long start = System.nanoTime();
+		File[] vizFiles = ListVizFiles();
+		timer.add("list", System.nanoTime() - start);
+		
+		// Each worker takes the next file not yet taken, until there are
+		// none left, so it can keep one GeoIP lookup for all of them.
+		final File[] files = vizFiles;
+		final PinStore[] loaded = new PinStore[files.length];
+		final AtomicInteger nextFile = new AtomicInteger();
+		int threads = Math.max(1, Math.min(workers, files.length));
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (int i = 0; i < threads; i++) {
+			futures.add(pool.submit(new Runnable() {
+				public void run() {
+					GeoDatabase db = geoLookup.hasCity() ? geoLookup.cityCopy() : geoLookup;
+					try {
+						// A file that can't be loaded is left out, as before.
+						int f;
+						while ((f = nextFile.getAndIncrement()) < files.length) {
+							try {
+								loaded[f] = LoadVizFile(files[f], db, timer);
+							} catch (RuntimeException e) {
+								e.printStackTrace();
+							}
+						}
+					} finally {
+						db.close();
+					}
+				}
+			}));
+		}
+		for (int i = 0; i < futures.size(); i++) {
+			try {
+				futures.get(i).get();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+		pool.shutdown();
+		
+		// Collect the runs, in file order.
+		List<PinStore> runs = new ArrayList<PinStore>();
+		for (int i = 0; i < loaded.length; i++) {
+			if (loaded[i] != null) {
+				runs.add(loaded[i]);
+			}
+		}
+		
+		// Merge the runs.
+		start = System.nanoTime();
+		PinStore retVal = MergeRuns(runs);
+		timer.add("merge", System.nanoTime() - start);
+		return retVal;
+	}
+	
+	// Parses and geolocates a single .viz file into a sorted run of pins,
+	// looking places up in db. The run's places go in a LocationTable of
+	// its own, which MergeRuns adds to locations.
+	private PinStore LoadVizFile(File vizFile, GeoDatabase db, PhaseTimer timer) {
+		PinStore run = new PinStore(1024, new LocationTable(1 << 10));
+		
+		// Determine if all packets are wanted.
+		boolean allPackets = PACKET_MODE.equalsIgnoreCase("ALL");
+		
+		// Map the file.
+		long start = System.nanoTime();
+		VizParser parser;
+		try {
+		    parser = new VizParser(vizFile);
+		} catch(IOException e) {
+		    e.printStackTrace();
+		    return run;
+		}
+		
+		// Read in the wanted lines of data, geolocating each as it's read.
+		// [0] ip, [1] timestamp, [2] response time, [3] last known ip, [4] application layer
+		VizParser.Record currPin = new VizParser.Record();
+		
+		// If the file is empty, there's nothing to do.
+		if (parser.next(currPin)) {
+			
+			// Get the last index of the line.
+			int lastIndex = currPin.fields - 1;
+			
+			// If it's Web data, set the boolean, reconfigure it.
+			boolean isWebData = parser.fieldEqualsIgnoreCase(lastIndex, "WEB");
+			
+			// Keep the first line.
+			if (currPin.valid) {
+				AddPin(run, currPin, isWebData, db);
+			}
+				
+			// Running until there are no more lines in the file:
+			while (parser.next(currPin)) {
+				
+				// Bad data, throw it out.
+				if (!currPin.valid || (currPin.fields < 5 && !isWebData)) {
+					continue;
+				
+				// If the application layer matches or ALL pins are wanted,
+				// keep the line.
+				
+				// Iterate through the next several pins of the same timestamp,
+				// as they will also have the same application layer type.
+				} else if (allPackets || parser.fieldEqualsIgnoreCase(lastIndex, PACKET_MODE)) {
+					AddPin(run, currPin, isWebData, db);
+				}
+			}
+		}
+		timer.add("parse", System.nanoTime() - start);
+		
+		// Sort the run, ready to merge. Like parse this is summed over the
+		// workers, so it's kept apart from the merge, which is one
+		// thread's wall time.
+		start = System.nanoTime();
+		run = run.sortedByTime();
+		timer.add("sort", System.nanoTime() - start);
+		return run;
+	}
+	
+	// K-way merges runs sorted by time. Equal pins come out in run order, so the
+	// result doesn't depend on which worker finished first.
+	private PinStore MergeRuns(final List<PinStore> runs) {
+		int total = 0;
+		for (int i = 0; i < runs.size(); i++) {
+			total += runs.get(i).size();
+		}
+		PinStore merged = new PinStore(total, locations);
+		
+		// Each run's places, in run order, so ids come out the same
+		// however the workers were scheduled.
+		int[][] ids = new int[runs.size()][];
+		for (int i = 0; i < runs.size(); i++) {
+			ids[i] = runs.get(i).locations.mergeInto(locations);
+		}
+		
+		final int[] next = new int[runs.size()];
+		PriorityQueue<Integer> heads = new PriorityQueue<Integer>(Math.max(1, runs.size()), new Comparator<Integer>() {
+			public int compare(Integer one, Integer two) {
+				long a = runs.get(one).time[next[one]];
+				long b = runs.get(two).time[next[two]];
+				return a != b ? (a < b ? -1 : 1) : one.compareTo(two);
+			}
+		});
+		for (int i = 0; i < runs.size(); i++) {
+			if (runs.get(i).size() > 0) {
+				heads.add(i);
+			}
+		}
+		while (!heads.isEmpty()) {
+			int r = heads.remove();
+			merged.copyRow(runs.get(r), next[r]++, ids[r]);
+			if (next[r] < runs.get(r).size()) {
+				heads.add(r);
+			}
+		}
+		return merged;
+	}
+	
+	// Open cells by location id when consolidating without a grid; kept
+	// between calls, as streaming consolidates every tick, and left empty.
+	private Cell[] cellByLocation = new Cell[0];
+	
+	// One consolidation grid cell: the row of the first pin to land in it,
+	// and how many pins landed in it, reached or not.
+	private static class Cell {
+		final int leader;
+		final long bucket;
+		int reached = 0;
+		int total = 0;
+		
+		Cell(int leader, long bucket) {
+			this.leader = leader;
+			this.bucket = bucket;
+		}
+	}
+	
+	// Takes the time ordered pins and consolidates those in the same grid
+	// cell, in a single pass. Each cell is drawn at its first pin's time,
+	// so the result comes out in time order too. With no grid, pins
+	// consolidate by location id, so cells are looked up by array index.
+	PinStore ConsolidatePins(PinStore temp) {
+		
+		// The cell each position is currently filling, and every cell in
+		// the order it was opened.
+		HashMap<Long, Cell> grid = CELL_SIZE > 0 ? new HashMap<Long, Cell>() : null;
+		if (grid == null && cellByLocation.length < locations.size()) {
+			cellByLocation = new Cell[locations.size() + (locations.size() >> 1)];
+		}
+		Cell[] byLocation = cellByLocation;
+		ArrayList<Cell> cells = new ArrayList<Cell>();
+		
+		for (int i = 0; i < temp.size(); i++) {
+			Long key = grid != null ? Long.valueOf(CellKey(temp.x(i), temp.y(i))) : null;
+			long bucket = CELL_MINUTES > 0
+					? temp.time[i] / (60L * CELL_MINUTES) : 0;
+			
+			// Pins arrive in time order, so a later bucket closes the old cell.
+			Cell cell = grid != null ? grid.get(key) : byLocation[temp.loc[i]];
+			if (cell == null || cell.bucket != bucket) {
+				cell = new Cell(i, bucket);
+				if (grid != null) {
+					grid.put(key, cell);
+				} else {
+					byLocation[temp.loc[i]] = cell;
+				}
+				cells.add(cell);
+			}
+			if (WasReached(temp.color[i])) {
+				cell.reached++;
+			}
+			cell.total++;
+		}
+		
+		PinStore consolidated = new PinStore(cells.size(), locations);
+		for (int i = 0; i < cells.size(); i++) {
+			Cell cell = cells.get(i);
+			Consolidate(consolidated, temp, cell.leader, cell.reached, cell.total);
+			if (grid == null) {
+				byLocation[temp.loc[cell.leader]] = null;
+			}
+		}
+		consolidated.trim();
+		return consolidated;
+	}
+	
+	// The grid cell a position falls in, as one long.
+	private long CellKey(float x, float y) {
+		long cx = (long) Math.floor(x / CELL_SIZE);
+		long cy = (long) Math.floor(y / CELL_SIZE);
+		return (cx << 32) | (cy & 0xffffffffL);
+	}
+	
+	// A run of total pins at the leader row's position, reached of them
+	// reached, added to out.
+	private void Consolidate(PinStore out, PinStore pins, int leader, int reached, int total) {
+		
+		// If no positions matched leader, it stands alone.
+		if (total == 1) {
+			out.copyRow(pins, leader);
+			return;
+		}
+		
+		// Otherwise, add a consolidated pin, colored by success rate.
+		float successRate = (float)reached / total;
+		int color = PinStore.rgb((int) (0xff * (1 - successRate)), (int) (0xff * successRate), 0);
+		out.add(pins.loc[leader], color, pins.time[leader], PinStore.CONSOLIDATED);
+	}
+	
+	// Streaming mode: reads every line of stream up to the clock, and
+	// returns them as consolidated pins.
+	PinStore NextPins(VizStream stream, long clock) {
+		PinStore tick = new PinStore(64, locations);
+		while (stream.hasNext() && stream.peek().time <= clock) {
+			AddPin(tick, stream.peek(), stream.peekIsWebData(), geoLookup);
+			stream.advance();
+		}
+		return ConsolidatePins(tick);
+	}
+	
+	// Adds a pin for one parsed line of a .viz file to store, placed by db.
+	void AddPin(PinStore store, VizParser.Record line, boolean isWebData, GeoDatabase db) {
+		float[] latlon = getLatLonByIP(db, line.ip);
+		float[] lastKnown = { Float.NaN, Float.NaN };
+		if (line.response == -1 && !isWebData) {
+			lastKnown = getLatLonByIP(db, line.lastKnownIp);
+		}
+		AddPin(store, line.time, line.response, latlon[0], latlon[1], lastKnown[0], lastKnown[1], isWebData);
+	}
+	
+	// The same for a line that's already been geolocated, as VizCache
+	// holds them. The last known position is NaN where there is none.
+	void AddPin(PinStore store, long time, float response, float lat, float lon,
+			float lastLat, float lastLon, boolean isWebData) {
+		
+		// Determine color based on response time.
+		int red, green;
+		if (response == -1 || response > MAX_RESPONSE) { // unreached, red
+			red = 0xff;
+			green = 0x00;
+		} else if (response == -2) { // last known for unreached, yellow
+			red = 0xff;
+			green = 0xff;
+		} else if (isWebData) { // reached; web data
+			red = (int) (0xff * (response / WEB_MAX_RESPONSE));
+			green = (int) (0xff * ((WEB_MAX_RESPONSE - response) / WEB_MAX_RESPONSE));
+		} else { // reached; intensity of green correlates to speed.
+			red = (int) (0xff * (response / MAX_RESPONSE));
+			green = (int) (0xff * ((MAX_RESPONSE - response) / MAX_RESPONSE));
+		}
+		
+		int row = store.add(store.locations.intern(lat, lon), PinStore.rgb(red, green, 0), time, (byte) 0);
+		
+		// Unreached pins also show the last known address, in yellow.
+		if (response == -1 && !isWebData) {
+			store.setLastKnown(row, store.locations.intern(lastLat, lastLon), LAST_KNOWN_COLOR);
+		}
+	}
+	
+	// Unreached pins are drawn pure red.
+	private static boolean WasReached(int color) {
+		return PinStore.red(color) != 0xFF && PinStore.green(color) != 0x00;
+	}
+	
+	// Queues row i of store, and its last known location if it has one.
+	void AddDots(PinBatch batch, PinStore store, int i) {
+		int lk = store.lastKnown[i];
+		if (lk >= 0) {
+			PinStore l = store.lastKnownStore();
+			batch.add(l.x(lk), l.y(lk), DOT_RADIUS, l.color[lk], l.color[lk]);
+		}
+		int radius = (store.flags[i] & PinStore.CONSOLIDATED) != 0 ? CONSOLIDATED_DOT_RADIUS : DOT_RADIUS;
+		batch.add(store.x(i), store.y(i), radius, store.color[i], store.color[i]);
+	}
+	
+	// Self-explanatory. db is geoLookup, or a loading thread's copy of it.
+	float[] getLatLonByIP(GeoDatabase db, int ip) {
+		float lat = 1000;
+		float lon = 1000;
+		if (!dbConnected) {
+			return null;
+		}
+
+		Location loc = db.location(IPv4.toLong(ip));
+		if (loc != null) {
+			lat = loc.latitude;
+			lon = loc.longitude;
+		}
+		
+		float[] latlon = {lat, lon};
+		return latlon;
+	}
+}
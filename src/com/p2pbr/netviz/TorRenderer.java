@@ -0,0 +1,193 @@
+package com.p2pbr.netviz;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+
+// Draws TorNetViz maps straight to PNG files, with no window and no frame
+// rate to wait on: a range's pins are loaded, then drawn into an offscreen
+// image as fast as the CPU allows. Meant for rendering many maps at once,
+// e.g. from a nightly job on a machine with no display.
+//
+// Arguments are from TorArgs.ini as for TorNetViz, plus
+//
+//   netviz.tor.ranges  START/END pairs, comma separated, each rendered as
+//                      its own map; or give them as arguments. Default is
+//                      the range in TorArgs.ini
+//   netviz.tor.out     directory to write to, default the working one
+//   netviz.tor.frames  also write every clock tick as a numbered PNG, as
+//                      TorNetViz would have shown it
+//   netviz.tor.jobs    ranges rendered at once, default one per core
+//
+// Each map is written as MODE_START_END.png, and its frames, if any, to a
+// directory of that name.
+public class TorRenderer {
+	private static final String MAP_FILE = "1024px-Equirectangular-projection.jpg";
+	private static final int WIDTH = 1024;
+	private static final int HEIGHT = 600;
+	private static final int BACKGROUND = 0x0055cc;
+	private static final int mapX = 0;
+	private static final int mapY = 0;
+
+	// TorNetViz's frame rate; with ONE_DAY_IN_SECS it sets how far the
+	// clock moves between frames.
+	private static final int FRAMERATE = 10;
+
+	// Dots queued before they're drawn, when not writing frames.
+	private static final int BATCH_SIZE = 1 << 16;
+
+	private final TorMap map;
+	private final BufferedImage mapImage;
+	private final File outDir;
+	private final boolean frames;
+
+	TorRenderer(TorMap map, BufferedImage mapImage, File outDir, boolean frames) {
+		this.map = map;
+		this.mapImage = mapImage;
+		this.outDir = outDir;
+		this.frames = frames;
+	}
+
+	public static void main(String[] args) {
+		// Nothing here needs a display; don't let AWT go looking for one.
+		System.setProperty("java.awt.headless", "true");
+		long start = System.nanoTime();
+
+		try {
+			TorMap base = TorMap.FromArgs(new File("TorArgs.ini"));
+			BufferedImage mapImage = ImageIO.read(new File(MAP_FILE));
+			base.SetMapArea(mapX, mapY, mapImage.getWidth(), mapImage.getHeight());
+
+			// The ranges, from the arguments or the property, or else the
+			// one in TorArgs.ini.
+			List<String> specs = new ArrayList<String>();
+			for (int i = 0; i < args.length; i++) {
+				specs.add(args[i]);
+			}
+			if (specs.isEmpty()) {
+				String[] list = System.getProperty("netviz.tor.ranges", "").split(",");
+				for (int i = 0; i < list.length; i++) {
+					if (list[i].trim().length() > 0) {
+						specs.add(list[i].trim());
+					}
+				}
+			}
+			List<TorMap> maps = new ArrayList<TorMap>();
+			if (specs.isEmpty()) {
+				maps.add(base);
+			}
+			for (int i = 0; i < specs.size(); i++) {
+				String[] ends = specs.get(i).split("/");
+				if (ends.length != 2) {
+					System.err.println("[TorRenderer] skipping range \"" + specs.get(i) + "\", expected START/END");
+					continue;
+				}
+				maps.add(base.WithRange(ends[0].trim(), ends[1].trim()));
+			}
+
+			// Ranges run side by side. Unless told otherwise, the cores are
+			// shared out between them for loading too.
+			int cores = Runtime.getRuntime().availableProcessors();
+			int jobs = Math.max(1, Math.min(Integer.getInteger("netviz.tor.jobs", cores), maps.size()));
+			if (System.getProperty("netviz.tor.workers") == null) {
+				for (int i = 0; i < maps.size(); i++) {
+					maps.get(i).workers = Math.max(1, cores / jobs);
+				}
+			}
+			File outDir = new File(System.getProperty("netviz.tor.out", "."));
+			outDir.mkdirs();
+			boolean frames = Boolean.getBoolean("netviz.tor.frames");
+
+			ExecutorService pool = Executors.newFixedThreadPool(jobs);
+			List<Future<String>> results = new ArrayList<Future<String>>();
+			for (int i = 0; i < maps.size(); i++) {
+				final TorRenderer renderer = new TorRenderer(maps.get(i), mapImage, outDir, frames);
+				results.add(pool.submit(new Callable<String>() {
+					public String call() throws IOException {
+						return renderer.render();
+					}
+				}));
+			}
+			for (int i = 0; i < results.size(); i++) {
+				try {
+					System.out.println("[TorRenderer] " + results.get(i).get());
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+			pool.shutdown();
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		System.out.println("[TorRenderer] done in " + (System.nanoTime() - start) / 1000000 + " ms");
+	}
+
+	// Loads and draws this renderer's range; returns a line for the log.
+	String render() throws IOException {
+		String name = map.PACKET_MODE + "_" + map.STARTING_INPUT_STRING + "_" + map.ENDING_INPUT_STRING;
+		name = name.replace(':', '-').replace('/', '-');
+
+		long start = System.nanoTime();
+		PhaseTimer timer = new PhaseTimer("list", "parse", "sort", "merge", "consolidate");
+		PinStore pins = map.CreatePins(timer);
+		long consolidateStart = System.nanoTime();
+		pins = map.ConsolidatePins(pins);
+		timer.add("consolidate", System.nanoTime() - consolidateStart);
+		long loaded = System.nanoTime();
+
+		// The map on the background, as TorNetViz starts out.
+		BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = image.createGraphics();
+		g.setColor(new Color(BACKGROUND));
+		g.fillRect(0, 0, WIDTH, HEIGHT);
+		g.drawImage(mapImage, mapX, mapY, null);
+		g.dispose();
+		int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+
+		PinBatch batch = new PinBatch(1024);
+		int written = 0;
+		if (!frames) {
+			// Only the end result matters, so draw everything in big batches.
+			for (int i = 0; i < pins.size(); i++) {
+				map.AddDots(batch, pins, i);
+				if (batch.size() >= BATCH_SIZE) {
+					batch.render(pixels, WIDTH, HEIGHT);
+				}
+			}
+			batch.render(pixels, WIDTH, HEIGHT);
+		} else {
+			// Tick the clock as TorNetViz does, writing each frame.
+			File frameDir = new File(outDir, name);
+			frameDir.mkdirs();
+			long clock = map.ClockStart();
+			long step = map.SecondsPerTick(FRAMERATE);
+			int next = 0;
+			while (next < pins.size()) {
+				clock += step;
+				while (next < pins.size() && pins.time[next] <= clock) {
+					map.AddDots(batch, pins, next++);
+				}
+				batch.render(pixels, WIDTH, HEIGHT);
+				ImageIO.write(image, "png", new File(frameDir, String.format("%06d.png", written)));
+				written++;
+			}
+		}
+		ImageIO.write(image, "png", new File(outDir, name + ".png"));
+
+		return name + ".png: " + pins.size() + " pins, loaded in " + (loaded - start) / 1000000
+				+ " ms (" + timer.report() + "), drawn" + (frames ? " with " + written + " frames" : "")
+				+ " in " + (System.nanoTime() - loaded) / 1000000 + " ms";
+	}
+}
@@ -0,0 +1,462 @@
+package com.p2pbr.netviz;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// A directory of .viz files converted once into a single binary file:
+// every line TorNetViz could draw, already geolocated and sorted by time,
+// plus a sparse index of times. Loading a window from it is a binary
+// search of the index, then a scan of fixed size records from a mapped
+// buffer. Packet mode and response limits are applied as the records
+// are read, so changing them doesn't mean parsing everything again.
+//
+// "ant run -Dtarget=VizCache" converts the DIRPATH in TorArgs.ini into
+// netviz.tor.cache (TorViz.cache by default). TorNetViz and TorRenderer
+// then load from that file, as long as it was made from their DIRPATH
+// and the directory still holds the same files, each the same size and
+// with the same modification time as when it was converted.
+//
+// Layout, big endian:
+//   header   int magic "NVZC", int version, long records, int index
+//            stride, int modes, long index offset
+//   records  RECORD_BYTES each: long time (epoch seconds), float lat,
+//            float lon, float response, float last known lat and lon
+//            (NaN if none), byte mode, byte flags, two bytes padding
+//   index    the time of every INDEX_STRIDE'th record
+//   trailer  the mode names, then the source directory, as UTF strings;
+//            then int files, and for each file converted, in name
+//            order, UTF name, long size, long modification time
+class VizCache {
+	static final String DEFAULT_FILE = "TorViz.cache";
+
+	private static final int MAGIC = 0x4e565a43; // "NVZC"
+	private static final int VERSION = 3;
+	private static final int HEADER_BYTES = 32;
+	private static final int RECORD_BYTES = 32;
+	private static final int INDEX_STRIDE = 1024;
+
+	// Records mapped at a time while loading.
+	private static final int MAP_RECORDS = 1 << 20;
+
+	// Record flags.
+	private static final byte WEB = 1;   // from a file of Web data
+	private static final byte FIRST = 2; // first line of its file, which is kept whatever its mode
+
+	// Mode for records past the 255th distinct mode name; only ALL draws them.
+	private static final int NO_MODE = 255;
+
+	private final File file;
+	private final long records;
+	private final long[] index;
+	private final String[] modes;
+	private final String source;
+
+	// The files it was made from, as they were then.
+	private final String[] names;
+	private final long[] sizes;
+	private final long[] mtimes;
+
+	// Reads the header, index and trailer of file.
+	VizCache(File file) throws IOException {
+		this.file = file;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			if (raf.length() < HEADER_BYTES || raf.readInt() != MAGIC) {
+				throw new IOException(file + " isn't a VizCache");
+			}
+			int version = raf.readInt();
+			if (version != VERSION) {
+				throw new IOException(file + " is version " + version + ", expected " + VERSION + "; convert again");
+			}
+			records = raf.readLong();
+			int stride = raf.readInt();
+			if (stride != INDEX_STRIDE) {
+				throw new IOException(file + " has index stride " + stride);
+			}
+			modes = new String[raf.readInt()];
+			long indexOffset = raf.readLong();
+			raf.seek(indexOffset);
+			index = new long[(int) ((records + INDEX_STRIDE - 1) / INDEX_STRIDE)];
+			for (int i = 0; i < index.length; i++) {
+				index[i] = raf.readLong();
+			}
+			for (int i = 0; i < modes.length; i++) {
+				modes[i] = raf.readUTF();
+			}
+			source = raf.readUTF();
+			names = new String[raf.readInt()];
+			sizes = new long[names.length];
+			mtimes = new long[names.length];
+			for (int i = 0; i < names.length; i++) {
+				names[i] = raf.readUTF();
+				sizes[i] = raf.readLong();
+				mtimes[i] = raf.readLong();
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	// The cache for map's DIRPATH, or null if there's no usable one.
+	static VizCache open(TorMap map) {
+		File file = new File(System.getProperty("netviz.tor.cache", DEFAULT_FILE));
+		if (!file.isFile()) {
+			return null;
+		}
+		VizCache cache;
+		try {
+			cache = new VizCache(file);
+		} catch (IOException e) {
+			System.err.println("[VizCache] " + e.getMessage());
+			return null;
+		}
+		File dir = new File(map.DIRPATH);
+		if (!cache.source.equals(dir.getAbsolutePath())) {
+			System.out.println("[VizCache] " + file + " was made from " + cache.source + ", not " + dir.getAbsolutePath());
+			return null;
+		}
+		String change = cache.change(dir);
+		if (change != null) {
+			System.out.println("[VizCache] " + change + " since " + file + " was made, convert again to use it");
+			return null;
+		}
+		return cache;
+	}
+
+	// How dir's files differ from the ones this was made from, or null
+	// if they're the same names, sizes and modification times.
+	private String change(File dir) {
+		File[] files = sourceFiles(dir);
+		if (files == null) {
+			return dir + " has gone";
+		}
+		int i = 0;
+		for (; i < files.length && i < names.length; i++) {
+			int order = files[i].getName().compareTo(names[i]);
+			if (order < 0) {
+				return files[i] + " was added";
+			}
+			if (order > 0) {
+				return new File(dir, names[i]) + " was removed";
+			}
+			if (files[i].length() != sizes[i] || files[i].lastModified() != mtimes[i]) {
+				return files[i] + " has changed";
+			}
+		}
+		if (i < files.length) {
+			return files[i] + " was added";
+		}
+		if (i < names.length) {
+			return new File(dir, names[i]) + " was removed";
+		}
+		return null;
+	}
+
+	// The files in dir a cache is made from, in name order, or null if
+	// it can't be listed.
+	private static File[] sourceFiles(File dir) {
+		File[] files = dir.listFiles(new FileFilter() {
+			public boolean accept(File file) {
+				return file.isFile();
+			}
+		});
+		if (files != null) {
+			Arrays.sort(files);
+		}
+		return files;
+	}
+
+	// Pins for map's time range and packet mode, in time order. Records
+	// are picked by their own timestamps rather than by file name.
+	PinStore load(TorMap map, PhaseTimer timer) throws IOException {
+		long from = VizTime.parse(map.STARTING_INPUT_STRING);
+		long to = VizTime.parse(map.ENDING_INPUT_STRING);
+		if (to < 0) {
+			to = Long.MAX_VALUE;
+		}
+		boolean all = map.PACKET_MODE.equalsIgnoreCase("ALL");
+		boolean[] wanted = new boolean[NO_MODE + 1];
+		for (int i = 0; i < modes.length; i++) {
+			wanted[i] = all || modes[i].equalsIgnoreCase(map.PACKET_MODE);
+		}
+		wanted[NO_MODE] = all;
+
+		long start = System.nanoTime();
+		long rec = seek(from);
+		timer.add("list", System.nanoTime() - start);
+
+		start = System.nanoTime();
+		PinStore pins = new PinStore(1024, map.locations);
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			scan:
+			while (rec < records) {
+				int n = (int) Math.min(records - rec, MAP_RECORDS);
+				MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY,
+						HEADER_BYTES + rec * RECORD_BYTES, (long) n * RECORD_BYTES);
+				for (int i = 0; i < n; i++) {
+					int at = i * RECORD_BYTES;
+					long time = buf.getLong(at);
+					if (time > to) {
+						break scan;
+					}
+					if (time < from) {
+						continue;
+					}
+					byte flags = buf.get(at + 29);
+					if ((flags & FIRST) == 0 && !wanted[buf.get(at + 28) & 0xff]) {
+						continue;
+					}
+					map.AddPin(pins, time, buf.getFloat(at + 16), buf.getFloat(at + 8), buf.getFloat(at + 12),
+							buf.getFloat(at + 20), buf.getFloat(at + 24), (flags & WEB) != 0);
+				}
+				rec += n;
+			}
+		} finally {
+			// the mappings stay valid after the channel closes
+			raf.close();
+		}
+		timer.add("parse", System.nanoTime() - start);
+		return pins;
+	}
+
+	// The first record that could be at or after time: the start of the
+	// last index stride that begins before it.
+	private long seek(long time) {
+		int lo = 0;
+		int hi = index.length - 1;
+		int found = 0;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (index[mid] < time) {
+				found = mid;
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return (long) found * INDEX_STRIDE;
+	}
+
+	// One file's worth of converted lines, in file order.
+	private static class Chunk {
+		int size = 0;
+		long[] time = new long[1024];
+		float[] lat = new float[1024];
+		float[] lon = new float[1024];
+		float[] response = new float[1024];
+		float[] lastLat = new float[1024];
+		float[] lastLon = new float[1024];
+		String[] mode = new String[1024];
+		byte[] flags = new byte[1024];
+
+		void add(long t, float[] latlon, float r, float[] lastKnown, String m, byte f) {
+			if (size == time.length) {
+				int capacity = size * 2;
+				time = Arrays.copyOf(time, capacity);
+				lat = Arrays.copyOf(lat, capacity);
+				lon = Arrays.copyOf(lon, capacity);
+				response = Arrays.copyOf(response, capacity);
+				lastLat = Arrays.copyOf(lastLat, capacity);
+				lastLon = Arrays.copyOf(lastLon, capacity);
+				mode = Arrays.copyOf(mode, capacity);
+				flags = Arrays.copyOf(flags, capacity);
+			}
+			time[size] = t;
+			lat[size] = latlon[0];
+			lon[size] = latlon[1];
+			response[size] = r;
+			lastLat[size] = lastKnown[0];
+			lastLon[size] = lastKnown[1];
+			mode[size] = m;
+			flags[size] = f;
+			size++;
+		}
+	}
+
+	// Parses and geolocates every line of file TorNetViz could keep in
+	// some packet mode, by the same rules as TorMap.LoadVizFile.
+	private static Chunk convertFile(File file, TorMap map) throws IOException {
+		Chunk chunk = new Chunk();
+		VizParser parser = new VizParser(file);
+		VizParser.Record line = new VizParser.Record();
+		if (!parser.next(line)) {
+			return chunk;
+		}
+		int lastIndex = line.fields - 1;
+		boolean isWebData = parser.fieldEqualsIgnoreCase(lastIndex, "WEB");
+		float[] none = { Float.NaN, Float.NaN };
+		String mode = null;
+		boolean first = true;
+		do {
+			// Bad data, throw it out. The first line only has to parse.
+			if (!line.valid || (!first && line.fields < 5 && !isWebData)) {
+				first = false;
+				continue;
+			}
+			// Most lines have the same mode as the one before.
+			if (mode == null || !parser.fieldEqualsIgnoreCase(lastIndex, mode)) {
+				mode = parser.field(lastIndex);
+			}
+			float[] lastKnown = line.response == -1 && !isWebData ? map.getLatLonByIP(map.geoLookup, line.lastKnownIp) : none;
+			byte flags = (byte) ((isWebData ? WEB : 0) | (first ? FIRST : 0));
+			chunk.add(line.time, map.getLatLonByIP(map.geoLookup, line.ip), line.response, lastKnown, mode, flags);
+			first = false;
+		} while (parser.next(line));
+		return chunk;
+	}
+
+	// Converts every file in map's DIRPATH into out; returns the number
+	// of records written. Files are parsed on map.workers threads.
+	static long convert(final TorMap map, File out) throws IOException {
+		if (!map.dbConnected) {
+			throw new IOException("no geolocation database to convert with");
+		}
+		File dir = new File(map.DIRPATH);
+		File[] files = sourceFiles(dir);
+		if (files == null) {
+			throw new FileNotFoundException(map.DIRPATH);
+		}
+
+		// Taken before each file is read, so one written to while it's
+		// converted doesn't match next time.
+		long[] sizes = new long[files.length];
+		long[] mtimes = new long[files.length];
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, map.workers));
+		List<Future<Chunk>> futures = new ArrayList<Future<Chunk>>();
+		for (int i = 0; i < files.length; i++) {
+			final File vizFile = files[i];
+			sizes[i] = vizFile.length();
+			mtimes[i] = vizFile.lastModified();
+			futures.add(pool.submit(new Callable<Chunk>() {
+				public Chunk call() throws IOException {
+					return convertFile(vizFile, map);
+				}
+			}));
+		}
+		List<Chunk> chunks = new ArrayList<Chunk>();
+		try {
+			for (int i = 0; i < futures.size(); i++) {
+				chunks.add(futures.get(i).get());
+			}
+		} catch (Exception e) {
+			throw new IOException("converting " + map.DIRPATH + " failed", e);
+		} finally {
+			pool.shutdown();
+		}
+
+		// All the lines in file order, then stably sorted by time.
+		int n = 0;
+		for (int i = 0; i < chunks.size(); i++) {
+			n += chunks.get(i).size;
+		}
+		long[] times = new long[n];
+		int[] chunkOf = new int[n];
+		int[] rowOf = new int[n];
+		int k = 0;
+		for (int c = 0; c < chunks.size(); c++) {
+			Chunk chunk = chunks.get(c);
+			for (int i = 0; i < chunk.size; i++, k++) {
+				times[k] = chunk.time[i];
+				chunkOf[k] = c;
+				rowOf[k] = i;
+			}
+		}
+		int[] order = PinStore.orderBy(times, n);
+
+		// Written beside out first, so a half written cache is never read.
+		File tmp = new File(out.getPath() + ".tmp");
+		HashMap<String, Integer> modeIds = new HashMap<String, Integer>();
+		List<String> modeNames = new ArrayList<String>();
+		long indexOffset = HEADER_BYTES + (long) n * RECORD_BYTES;
+		DataOutputStream data = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+		try {
+			data.writeInt(MAGIC);
+			data.writeInt(VERSION);
+			data.writeLong(n);
+			data.writeInt(INDEX_STRIDE);
+			data.writeInt(0); // mode count, filled in below
+			data.writeLong(indexOffset);
+			for (int i = 0; i < n; i++) {
+				Chunk chunk = chunks.get(chunkOf[order[i]]);
+				int row = rowOf[order[i]];
+				Integer mode = modeIds.get(chunk.mode[row]);
+				if (mode == null) {
+					mode = modeNames.size() < NO_MODE ? modeNames.size() : NO_MODE;
+					if (mode < NO_MODE) {
+						modeNames.add(chunk.mode[row]);
+					}
+					modeIds.put(chunk.mode[row], mode);
+				}
+				data.writeLong(chunk.time[row]);
+				data.writeFloat(chunk.lat[row]);
+				data.writeFloat(chunk.lon[row]);
+				data.writeFloat(chunk.response[row]);
+				data.writeFloat(chunk.lastLat[row]);
+				data.writeFloat(chunk.lastLon[row]);
+				data.writeByte(mode);
+				data.writeByte(chunk.flags[row]);
+				data.writeShort(0);
+			}
+			for (int i = 0; i < n; i += INDEX_STRIDE) {
+				data.writeLong(chunks.get(chunkOf[order[i]]).time[rowOf[order[i]]]);
+			}
+			for (int i = 0; i < modeNames.size(); i++) {
+				data.writeUTF(modeNames.get(i));
+			}
+			data.writeUTF(dir.getAbsolutePath());
+			data.writeInt(files.length);
+			for (int i = 0; i < files.length; i++) {
+				data.writeUTF(files[i].getName());
+				data.writeLong(sizes[i]);
+				data.writeLong(mtimes[i]);
+			}
+		} finally {
+			data.close();
+		}
+		RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+		try {
+			raf.seek(20);
+			raf.writeInt(modeNames.size());
+		} finally {
+			raf.close();
+		}
+		if (out.exists() && !out.delete()) {
+			throw new IOException("can't replace " + out);
+		}
+		if (!tmp.renameTo(out)) {
+			throw new IOException("can't rename " + tmp + " to " + out);
+		}
+		return n;
+	}
+
+	public static void main(String[] args) {
+		try {
+			TorMap map = TorMap.FromArgs(new File("TorArgs.ini"));
+			File out = new File(System.getProperty("netviz.tor.cache", DEFAULT_FILE));
+			long start = System.nanoTime();
+			long n = convert(map, out);
+			System.out.println("[VizCache] " + n + " records from " + map.DIRPATH + " to " + out + ", "
+					+ out.length() / 1024 + " KB in " + (System.nanoTime() - start) / 1000000 + " ms");
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
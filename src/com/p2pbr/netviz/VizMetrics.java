@@ -0,0 +1,324 @@
+package com.p2pbr.netviz;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+// Counters and gauges for a running visualizer, published over JMX as
+// com.p2pbr.netviz:type=<name> for jconsole or VisualVM and, with
+// -Dnetviz.metrics.csv=FILE, appended to a CSV file every
+// netviz.metrics.interval seconds (default 5).
+//
+// The draw loop records once per frame, not per packet, so this is
+// cheap enough to leave on. Readers may be on any thread.
+public class VizMetrics implements VizMetricsMBean {
+	private static final String[] COLUMNS = { "time", "packets", "bytes", "packetsPerSecond", "dropped",
+			"queueDepth", "queueHighWater", "bytesLastSecond", "bytesInWindow", "pins", "frames", "frameRate",
+			"frameRateTarget", "frameMillisMean", "frameMillisP50", "frameMillisP99", "frameMillisMax",
+			"geoLookups", "geoLookupMicrosMean", "geoLookupMicrosP99", "heapUsedBytes", "heapBytesPerPin",
+			"frameAllocatedBytes", "pinsEvicted", "pinsFolded", "geoLookupsSkipped" };
+
+	// HotSpot's count of bytes each thread has allocated, or null on a
+	// JVM without one.
+	private static final com.sun.management.ThreadMXBean ALLOCATIONS = allocationCounter();
+
+	private final String name;
+	private final float frameRateTarget;
+	private final PacketRing ring; // may be null
+	private final GeoDatabase geo; // may be null
+
+	private final AtomicLong packets = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private final Log2Histogram frameNanos = new Log2Histogram();
+
+	private volatile int pins = 0;
+	private volatile long pinBytes = -1;
+	private volatile long pinsEvicted = 0;
+	private volatile long pinsFolded = 0;
+	private volatile long geoLookupsSkipped = 0;
+	private volatile long bytesLastSecond = 0;
+	private volatile long bytesInWindow = 0;
+
+	// Rates, worked out by the draw thread about once a second.
+	private long rateStart = -1;
+	private long ratePackets = 0;
+	private long rateFrames = 0;
+	private volatile double packetsPerSecond = 0;
+	private volatile double frameRate = 0;
+	private long rateAllocated = -1;
+	private volatile double frameAllocatedBytes = -1;
+
+	VizMetrics(String name, float frameRateTarget, PacketRing ring, GeoDatabase geo) {
+		this.name = name;
+		this.frameRateTarget = frameRateTarget;
+		this.ring = ring;
+		this.geo = geo;
+	}
+
+	// Metrics for the named visualizer, registered with the platform
+	// MBean server, and dumping to CSV if asked to.
+	static VizMetrics register(String name, float frameRateTarget, PacketRing ring, GeoDatabase geo) {
+		VizMetrics m = new VizMetrics(name, frameRateTarget, ring, geo);
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(m, new ObjectName("com.p2pbr.netviz:type=" + name));
+		} catch (JMException e) {
+			System.err.println("[VizMetrics] " + name + " not published over JMX: " + e);
+		}
+		String csv = System.getProperty("netviz.metrics.csv");
+		if (csv != null) {
+			m.dumpTo(new File(csv), Integer.getInteger("netviz.metrics.interval", 5));
+		}
+		return m;
+	}
+
+	// Draw thread: n packets of so many bytes applied this frame.
+	void packets(int n, long total) {
+		if (n > 0) {
+			packets.addAndGet(n);
+			bytes.addAndGet(total);
+		}
+	}
+
+	void pins(int n) {
+		pins = n;
+	}
+
+	// Bytes the pins take when they're in a PinStore, for heap per pin;
+	// otherwise it's the whole heap over the pins.
+	void pinBytes(long n) {
+		pinBytes = n;
+	}
+
+	// Pins evicted to stay under a cap, and how many of those were folded
+	// into per-ASN pins, both since start.
+	void evictions(long evicted, long folded) {
+		pinsEvicted = evicted;
+		pinsFolded = folded;
+	}
+
+	// Lookups the GeoResolver didn't queue because too many were waiting.
+	void geoSkipped(long skipped) {
+		geoLookupsSkipped = skipped;
+	}
+
+	void windows(long lastSecond, long window) {
+		bytesLastSecond = lastSecond;
+		bytesInWindow = window;
+	}
+
+	// Draw thread, once a frame.
+	void frame(long nanos, long now) {
+		frameNanos.record(nanos);
+		rateFrames++;
+		if (rateStart < 0) {
+			rateStart = now;
+			ratePackets = packets.get();
+			rateAllocated = threadAllocatedBytes();
+			rateFrames = 0;
+		} else if (now - rateStart >= 1000) {
+			double seconds = (now - rateStart) / 1000.0;
+			long p = packets.get();
+			packetsPerSecond = (p - ratePackets) / seconds;
+			frameRate = rateFrames / seconds;
+			long allocated = threadAllocatedBytes();
+			if (allocated >= 0 && rateAllocated >= 0) {
+				frameAllocatedBytes = (double) (allocated - rateAllocated) / rateFrames;
+			}
+			rateStart = now;
+			ratePackets = p;
+			rateAllocated = allocated;
+			rateFrames = 0;
+		}
+	}
+
+	public long getPackets() {
+		return packets.get();
+	}
+
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	public double getPacketsPerSecond() {
+		return packetsPerSecond;
+	}
+
+	public long getDropped() {
+		return ring == null ? 0 : ring.dropped();
+	}
+
+	public int getQueueDepth() {
+		return ring == null ? 0 : ring.size();
+	}
+
+	public long getQueueHighWater() {
+		return ring == null ? 0 : ring.highWater();
+	}
+
+	public long getBytesLastSecond() {
+		return bytesLastSecond;
+	}
+
+	public long getBytesInWindow() {
+		return bytesInWindow;
+	}
+
+	public int getPins() {
+		return pins;
+	}
+
+	public long getPinsEvicted() {
+		return pinsEvicted;
+	}
+
+	public long getPinsFolded() {
+		return pinsFolded;
+	}
+
+	public long getGeoLookupsSkipped() {
+		return geoLookupsSkipped;
+	}
+
+	public long getFrames() {
+		return frameNanos.count();
+	}
+
+	public double getFrameRate() {
+		return frameRate;
+	}
+
+	public double getFrameRateTarget() {
+		return frameRateTarget;
+	}
+
+	public double getFrameMillisMean() {
+		return frameNanos.mean() / 1e6;
+	}
+
+	public double getFrameMillisP50() {
+		return frameNanos.percentile(0.5) / 1e6;
+	}
+
+	public double getFrameMillisP99() {
+		return frameNanos.percentile(0.99) / 1e6;
+	}
+
+	public double getFrameMillisMax() {
+		return frameNanos.max() / 1e6;
+	}
+
+	public long getGeoLookups() {
+		return geo == null ? 0 : geo.latency().count();
+	}
+
+	public double getGeoLookupMicrosMean() {
+		return geo == null ? 0 : geo.latency().mean() / 1e3;
+	}
+
+	public double getGeoLookupMicrosP99() {
+		return geo == null ? 0 : geo.latency().percentile(0.99) / 1e3;
+	}
+
+	public long getHeapUsedBytes() {
+		Runtime rt = Runtime.getRuntime();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+	public double getHeapBytesPerPin() {
+		int n = pins;
+		if (n == 0) {
+			return 0;
+		}
+		long b = pinBytes;
+		return (double) (b >= 0 ? b : getHeapUsedBytes()) / n;
+	}
+
+	public double getFrameAllocatedBytes() {
+		return frameAllocatedBytes;
+	}
+
+	// For the replay log lines: what the draw thread allocates per frame.
+	String allocationReport() {
+		double bytes = frameAllocatedBytes;
+		return bytes < 0 ? "" : ", " + Math.round(bytes) + " bytes/frame allocated";
+	}
+
+	public void reset() {
+		frameNanos.reset();
+	}
+
+	// Appends a row every interval seconds from a daemon thread, with a
+	// header first if the file is new.
+	void dumpTo(final File file, int intervalSeconds) {
+		final PrintWriter out;
+		try {
+			boolean fresh = !file.exists() || file.length() == 0;
+			out = new PrintWriter(new FileWriter(file, true));
+			if (fresh) {
+				out.println(join(COLUMNS));
+				out.flush();
+			}
+		} catch (IOException e) {
+			System.err.println("[VizMetrics] can't write " + file + ": " + e);
+			return;
+		}
+		long period = Math.max(1, intervalSeconds) * 1000L;
+		new Timer("VizMetrics " + name, true).scheduleAtFixedRate(new TimerTask() {
+			public void run() {
+				out.println(row());
+				out.flush();
+			}
+		}, period, period);
+		System.out.println("[VizMetrics] writing " + file + " every " + period / 1000 + " s");
+	}
+
+	private String row() {
+		Object[] values = { System.currentTimeMillis(), getPackets(), getBytes(), getPacketsPerSecond(), getDropped(),
+				getQueueDepth(), getQueueHighWater(), getBytesLastSecond(), getBytesInWindow(), getPins(), getFrames(),
+				getFrameRate(), getFrameRateTarget(), getFrameMillisMean(), getFrameMillisP50(), getFrameMillisP99(),
+				getFrameMillisMax(), getGeoLookups(), getGeoLookupMicrosMean(), getGeoLookupMicrosP99(),
+				getHeapUsedBytes(), getHeapBytesPerPin(), getFrameAllocatedBytes(), getPinsEvicted(), getPinsFolded(),
+				getGeoLookupsSkipped() };
+		return join(values);
+	}
+
+	// Bytes this thread has allocated so far, or -1 if that isn't known.
+	// Reading it allocates nothing.
+	static long threadAllocatedBytes() {
+		return ALLOCATIONS == null ? -1 : ALLOCATIONS.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	private static com.sun.management.ThreadMXBean allocationCounter() {
+		try {
+			Object threads = ManagementFactory.getThreadMXBean();
+			if (threads instanceof com.sun.management.ThreadMXBean) {
+				com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean) threads;
+				if (counter.isThreadAllocatedMemorySupported() && counter.isThreadAllocatedMemoryEnabled()) {
+					return counter;
+				}
+			}
+		} catch (LinkageError e) {
+			// not HotSpot
+		}
+		return null;
+	}
+
+	private static String join(Object[] values) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append(values[i]);
+		}
+		return sb.toString();
+	}
+}
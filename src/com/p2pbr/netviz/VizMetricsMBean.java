@@ -0,0 +1,47 @@
+package com.p2pbr.netviz;
+
+// What VizMetrics publishes over JMX. Totals are since start; rates are
+// over the last second; latencies are since start or the last reset().
+public interface VizMetricsMBean {
+	// packets applied by the draw loop, and what it couldn't keep up with
+	long getPackets();
+	long getBytes();
+	double getPacketsPerSecond();
+	long getDropped();
+	int getQueueDepth();
+	long getQueueHighWater();
+
+	// traffic in the inNow and inWindow counters
+	long getBytesLastSecond();
+	long getBytesInWindow();
+
+	int getPins();
+	// pins dropped to stay under netviz.pins.max, and traffic folded into
+	// per-ASN pins instead
+	long getPinsEvicted();
+	long getPinsFolded();
+
+	long getFrames();
+	double getFrameRate();
+	double getFrameRateTarget();
+	double getFrameMillisMean();
+	double getFrameMillisP50();
+	double getFrameMillisP99();
+	double getFrameMillisMax();
+
+	long getGeoLookups();
+	double getGeoLookupMicrosMean();
+	double getGeoLookupMicrosP99();
+	// lookups NetViz didn't queue, past netviz.geo.pending
+	long getGeoLookupsSkipped();
+
+	long getHeapUsedBytes();
+	double getHeapBytesPerPin();
+
+	// bytes the draw thread allocated per frame over the last second, -1
+	// if the JVM doesn't count them; 0 is the aim
+	double getFrameAllocatedBytes();
+
+	// starts the frame time percentiles over
+	void reset();
+}
@@ -0,0 +1,249 @@
+package com.p2pbr.netviz;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Reads a .viz file straight out of a memory-mapped buffer, one line at
+// a time, into a reusable Record. Fields are picked out byte by byte;
+// no Strings are made unless a response time is in an unusual format.
+//
+// Lines are tab separated: [0] ip, [1] timestamp, [2] response time,
+// [3] last known ip, [4] application layer. Web data lines may stop early.
+class VizParser {
+
+	// One parsed line. Filled in place by next().
+	static class Record {
+		int ip;
+		long time;       // epoch seconds, see VizTime
+		float response;
+		int lastKnownIp; // 0 if absent or not an address
+		int fields;      // how many tab separated fields the line had
+		boolean valid;   // false if the timestamp or response didn't parse
+	}
+
+	private static final int MAX_FIELDS = 8;
+
+	private final MappedByteBuffer buf;
+	private final int limit;
+	private int pos = 0;
+
+	// Where each field of the current line starts and ends.
+	private final int[] fieldStart = new int[MAX_FIELDS];
+	private final int[] fieldEnd = new int[MAX_FIELDS];
+	private int fields = 0;
+
+	public VizParser(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException(file + " is too large to map");
+			}
+			buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			limit = (int) channel.size();
+		} finally {
+			// the mapping stays valid after the channel closes
+			raf.close();
+		}
+	}
+
+	// Reads the next non-empty line into r. Returns false at end of file.
+	public boolean next(Record r) {
+		while (pos < limit) {
+			if (splitLine()) {
+				fill(r);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// True if field i of the current line equals s, ignoring ASCII case.
+	public boolean fieldEqualsIgnoreCase(int i, String s) {
+		if (i < 0 || i >= fields || fieldEnd[i] - fieldStart[i] != s.length()) {
+			return false;
+		}
+		for (int k = 0; k < s.length(); k++) {
+			int a = buf.get(fieldStart[i] + k);
+			int b = s.charAt(k);
+			if (a != b && Character.toUpperCase(a) != Character.toUpperCase(b)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// Field i of the current line as a String; "" if the line is shorter.
+	public String field(int i) {
+		if (i < 0 || i >= fields) {
+			return "";
+		}
+		char[] chars = new char[fieldEnd[i] - fieldStart[i]];
+		for (int k = 0; k < chars.length; k++) {
+			chars[k] = (char) (buf.get(fieldStart[i] + k) & 0xff);
+		}
+		return new String(chars);
+	}
+
+	// Finds the tabs of the line at pos and moves pos past it.
+	// Returns false for an empty line.
+	private boolean splitLine() {
+		fields = 0;
+		int start = pos;
+		int i = pos;
+		while (i < limit) {
+			byte b = buf.get(i);
+			if (b == '\n') {
+				break;
+			}
+			if (b == '\t') {
+				addField(start, i);
+				start = i + 1;
+			}
+			i++;
+		}
+		int end = i;
+		if (end > start && buf.get(end - 1) == '\r') {
+			end--;
+		}
+		pos = i + 1;
+		if (fields == 0 && end == start) {
+			return false;
+		}
+		addField(start, end);
+		return true;
+	}
+
+	private void addField(int start, int end) {
+		if (fields < MAX_FIELDS) {
+			fieldStart[fields] = start;
+			fieldEnd[fields] = end;
+			fields++;
+		}
+	}
+
+	private void fill(Record r) {
+		r.fields = fields;
+		r.valid = false;
+		if (fields < 3) {
+			return;
+		}
+		r.ip = parseIp(fieldStart[0], fieldEnd[0]);
+		r.time = parseTime(fieldStart[1], fieldEnd[1]);
+		r.response = parseFloat(fieldStart[2], fieldEnd[2]);
+		r.lastKnownIp = fields > 3 ? parseIp(fieldStart[3], fieldEnd[3]) : 0;
+		r.valid = r.time >= 0 && !Float.isNaN(r.response);
+	}
+
+	// Dotted quad to int; 0 if it isn't one.
+	private int parseIp(int start, int end) {
+		int ip = 0;
+		int octet = 0;
+		int dots = 0;
+		boolean digits = false;
+		for (int i = start; i < end; i++) {
+			byte b = buf.get(i);
+			if (b >= '0' && b <= '9') {
+				octet = octet * 10 + (b - '0');
+				digits = true;
+				if (octet > 255) {
+					return 0;
+				}
+			} else if (b == '.' && digits && dots < 3) {
+				ip = (ip << 8) | octet;
+				octet = 0;
+				dots++;
+				digits = false;
+			} else {
+				return 0;
+			}
+		}
+		if (dots != 3 || !digits) {
+			return 0;
+		}
+		return (ip << 8) | octet;
+	}
+
+	// Same rules as VizTime.parse, over bytes.
+	private long parseTime(int start, int end) {
+		int year = 0, month = 0, date = 0, hour = 0, minute = 0, second = 0;
+		int n = 0;
+		int value = 0;
+		boolean digits = false;
+		for (int i = start; i <= end && n < 6; i++) {
+			byte b = i < end ? buf.get(i) : (byte) ' ';
+			if (b >= '0' && b <= '9') {
+				value = value * 10 + (b - '0');
+				digits = true;
+			} else if (digits) {
+				switch (n) {
+					case 0: year = value; break;
+					case 1: month = value; break;
+					case 2: date = value; break;
+					case 3: hour = value; break;
+					case 4: minute = value; break;
+					case 5: second = value; break;
+				}
+				n++;
+				value = 0;
+				digits = false;
+			}
+		}
+		if (n < 5) {
+			return -1;
+		}
+		return VizTime.epochSeconds(year, month, date, hour, minute, second);
+	}
+
+	// Plain decimals like -1, 250 or 12.75. Anything else (exponents)
+	// goes through Float.parseFloat. NaN if it isn't a number at all.
+	private float parseFloat(int start, int end) {
+		int i = start;
+		boolean negative = false;
+		if (i < end && (buf.get(i) == '-' || buf.get(i) == '+')) {
+			negative = buf.get(i) == '-';
+			i++;
+		}
+		long whole = 0;
+		long frac = 0;
+		long scale = 1;
+		boolean digits = false;
+		boolean point = false;
+		for (; i < end; i++) {
+			byte b = buf.get(i);
+			if (b >= '0' && b <= '9') {
+				digits = true;
+				if (!point) {
+					whole = whole * 10 + (b - '0');
+				} else if (scale < 1000000000L) {
+					frac = frac * 10 + (b - '0');
+					scale *= 10;
+				}
+			} else if (b == '.' && !point) {
+				point = true;
+			} else {
+				return slowParseFloat(start, end);
+			}
+		}
+		if (!digits) {
+			return Float.NaN;
+		}
+		double value = whole + (double) frac / scale;
+		return (float) (negative ? -value : value);
+	}
+
+	private float slowParseFloat(int start, int end) {
+		byte[] bytes = new byte[end - start];
+		for (int i = start; i < end; i++) {
+			bytes[i - start] = buf.get(i);
+		}
+		try {
+			return Float.parseFloat(new String(bytes, "US-ASCII"));
+		} catch (Exception e) {
+			return Float.NaN;
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package com.p2pbr.netviz;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+// Merges the lines of a set of .viz files into a single stream ordered by
+// timestamp, reading each file only as far as its next line. Memory stays
+// at one pending record per open file no matter how much data there is.
+//
+// Each file is expected to be in time order already, as the measurement
+// tools write them.
+class VizStream {
+
+	// An open file and the next record we'll take from it.
+	private class Cursor {
+		final VizParser parser;
+		final VizParser.Record record = new VizParser.Record();
+		int lastIndex;
+		boolean isWebData;
+
+		Cursor(VizParser parser) {
+			this.parser = parser;
+		}
+
+		// Reads the first line, which decides whether the whole file is
+		// Web data and how many fields its lines carry. False if empty.
+		boolean start() {
+			if (!parser.next(record)) {
+				return false;
+			}
+			lastIndex = record.fields - 1;
+			isWebData = parser.fieldEqualsIgnoreCase(lastIndex, "WEB");
+			return record.valid || advance();
+		}
+
+		// Moves to the next wanted line; false once the file is used up.
+		boolean advance() {
+			while (parser.next(record)) {
+				// Bad data, throw it out.
+				if (!record.valid || (record.fields < 5 && !isWebData)) {
+					continue;
+				}
+				if (allPackets || parser.fieldEqualsIgnoreCase(lastIndex, packetMode)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	private final String packetMode;
+	private final boolean allPackets;
+	private final PriorityQueue<Cursor> heads;
+
+	public VizStream(File[] vizFiles, String packetMode) {
+		this.packetMode = packetMode;
+		this.allPackets = packetMode.equalsIgnoreCase("ALL");
+		this.heads = new PriorityQueue<Cursor>(Math.max(1, vizFiles.length), new Comparator<Cursor>() {
+			public int compare(Cursor one, Cursor two) {
+				long a = one.record.time;
+				long b = two.record.time;
+				return a < b ? -1 : (a > b ? 1 : 0);
+			}
+		});
+
+		for (int i = 0; i < vizFiles.length; i++) {
+			Cursor cursor;
+			try {
+				cursor = new Cursor(new VizParser(vizFiles[i]));
+			} catch (IOException e) {
+				e.printStackTrace();
+				continue;
+			}
+			// Empty files contribute nothing.
+			if (cursor.start()) {
+				heads.add(cursor);
+			}
+		}
+	}
+
+	public boolean hasNext() {
+		return !heads.isEmpty();
+	}
+
+	// The record at the head of the stream. Only valid until advance().
+	public VizParser.Record peek() {
+		return heads.peek().record;
+	}
+
+	public boolean peekIsWebData() {
+		return heads.peek().isWebData;
+	}
+
+	// Drops the head record and moves on to the next one.
+	public void advance() {
+		Cursor head = heads.remove();
+		if (head.advance()) {
+			heads.add(head);
+		}
+	}
+}
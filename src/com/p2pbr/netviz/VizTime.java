@@ -0,0 +1,47 @@
+package com.p2pbr.netviz;
+
+// .viz timestamps (YY_MM_DD-HR:MI:SE) as seconds since 1970-01-01 00:00
+// UTC, in a plain long. Comparing two is one instruction and stepping a
+// clock is an addition, seconds included. Year zero is the year 2000.
+final class VizTime {
+	private VizTime() {}
+
+	static long epochSeconds(int year, int month, int date, int hour, int minute, int second) {
+		return epochDay(2000 + year, month, date) * 86400 + hour * 3600 + minute * 60 + second;
+	}
+
+	// Days since 1970-01-01 for a proleptic Gregorian date.
+	static long epochDay(int year, int month, int date) {
+		int y = month <= 2 ? year - 1 : year;
+		int era = (y >= 0 ? y : y - 399) / 400;
+		int yoe = y - era * 400;
+		int doy = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + date - 1;
+		int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+		return era * 146097L + doe - 719468;
+	}
+
+	// Parses YY_MM_DD-HR:MI[:SE], any non-digit separating the fields.
+	// Returns -1 if fewer than five fields are present.
+	static long parse(CharSequence s) {
+		int[] f = new int[6];
+		int n = 0;
+		boolean inDigits = false;
+		for (int i = 0; i < s.length() && n < 6; i++) {
+			char c = s.charAt(i);
+			if (c >= '0' && c <= '9') {
+				f[n] = f[n] * 10 + (c - '0');
+				inDigits = true;
+			} else if (inDigits) {
+				n++;
+				inDigits = false;
+			}
+		}
+		if (inDigits) {
+			n++;
+		}
+		if (n < 5) {
+			return -1;
+		}
+		return epochSeconds(f[0], f[1], f[2], f[3], f[4], f[5]);
+	}
+}